@@ -1,6 +1,7 @@
 /**
- * Handles administrative commands for the RoundThing plugin, such as setting the particle limit
- * and reloading the configuration. Access is restricted to operators or players with the
+ * Handles administrative commands for the RoundThing plugin, such as setting the particle limit,
+ * reloading the configuration, listing the shapes near the sender and exporting the shapes of a
+ * player to YAML. Access is restricted to operators or players with the
  * 'roundthing.admin' permission.
  *
  * @author Silas Hörz
@@ -8,14 +9,26 @@
  */
 package de.roundthing;
 
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.OfflinePlayer;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
 public class AdminCommand implements CommandExecutor {
 
+    private static final int MAX_NEAR_RADIUS_FACTOR = 4; // The near lookup reaches at most this many render distances
+
     private final RoundThing plugin;
     private final LocaleManager localeManager;
 
@@ -35,6 +48,9 @@ public class AdminCommand implements CommandExecutor {
             sendMessage(sender, "admin_help_header");
             sendMessage(sender, "admin_help_setlimit");
             sendMessage(sender, "admin_help_reload");
+            sendMessage(sender, "admin_help_stats");
+            sendMessage(sender, "admin_help_near");
+            sendMessage(sender, "admin_help_export");
             return true;
         }
 
@@ -70,6 +86,27 @@ public class AdminCommand implements CommandExecutor {
                 sendMessage(sender, "admin_reload_success", "%limit%", String.valueOf(plugin.getParticleLimit()));
                 break;
 
+            case "stats":
+                TemplateCache cache = TemplateCache.getInstance();
+                sendMessage(sender, "admin_stats_cache",
+                        "%size%", String.valueOf(cache.size()),
+                        "%hits%", String.valueOf(cache.getHits()),
+                        "%misses%", String.valueOf(cache.getMisses()));
+                RenderThrottle throttle = plugin.getRenderThrottle();
+                sendMessage(sender, "admin_stats_render",
+                        "%scale%", String.valueOf(Math.round(throttle.getScale() * 100)),
+                        "%budget%", String.valueOf(throttle.getParticlesPerTick()),
+                        "%refresh%", String.valueOf(throttle.getRefreshTicks()));
+                break;
+
+            case "near":
+                handleNear(sender, args);
+                break;
+
+            case "export":
+                handleExport(sender, args);
+                break;
+
             default:
                 sendMessage(sender, "admin_unknown_command");
                 break;
@@ -77,6 +114,104 @@ public class AdminCommand implements CommandExecutor {
         return true;
     }
 
+    /**
+     * Lists the shapes of all players near the sender, closest first. The lookup uses the
+     * spatial index, so it only visits the chunks within the radius. The radius is capped at a
+     * few times the render distance, so a typo cannot make the lookup visit millions of chunks.
+     */
+    private void handleNear(CommandSender sender, String[] args) {
+        if (!(sender instanceof Player)) {
+            sendMessage(sender, "command_from_console");
+            return;
+        }
+        double radius = plugin.getRenderDistance();
+        if (args.length >= 2) {
+            try {
+                radius = Double.parseDouble(args[1]);
+            } catch (NumberFormatException e) {
+                sendMessage(sender, "invalid_number");
+                return;
+            }
+            double maxRadius = Math.max(1, plugin.getRenderDistance()) * MAX_NEAR_RADIUS_FACTOR;
+            if (!(radius > 0 && radius <= maxRadius)) { // Also rejects NaN
+                sendMessage(sender, "admin_near_invalid_radius", "%max%", String.valueOf((int) maxRadius));
+                return;
+            }
+        }
+
+        Location location = ((Player) sender).getLocation();
+        List<ShapeIndex.Entry> nearby = new ArrayList<>();
+        plugin.getShapeIndex().forEachNear(location.getWorld(), location.getX(), location.getY(), location.getZ(), radius, nearby::add);
+        String radiusText = String.valueOf((int) radius);
+        if (nearby.isEmpty()) {
+            sendMessage(sender, "admin_near_empty", "%radius%", radiusText);
+            return;
+        }
+
+        nearby.sort(Comparator.comparingDouble(entry -> entry.getShape().distanceSquared(location.getX(), location.getY(), location.getZ())));
+        sendMessage(sender, "admin_near_header", "%radius%", radiusText, "%count%", String.valueOf(nearby.size()));
+        for (ShapeIndex.Entry entry : nearby) {
+            ParticleShape shape = entry.getShape();
+            String type = shape instanceof ParticleCircle ? "circle" : shape instanceof ParticleSphere ? "sphere" : "line";
+            String owner = Bukkit.getOfflinePlayer(entry.getOwner()).getName();
+            sendMessage(sender, "admin_near_entry",
+                    "%type%", type,
+                    "%name%", entry.getName(),
+                    "%owner%", owner != null ? owner : entry.getOwner().toString(),
+                    "%distance%", String.valueOf((int) Math.sqrt(shape.distanceSquared(location.getX(), location.getY(), location.getZ()))));
+        }
+    }
+
+    /**
+     * Exports the shapes of a player to a YAML file, for debugging the binary player data.
+     * The player can be given by name, if they are online or have played before, or by UUID.
+     * The data of players who are not loaded is only read, never loaded or migrated.
+     */
+    private void handleExport(CommandSender sender, String[] args) {
+        if (args.length != 2) {
+            sendMessage(sender, "admin_usage_export");
+            return;
+        }
+        UUID uuid = resolvePlayer(args[1]);
+        if (uuid == null) {
+            sendMessage(sender, "admin_export_no_data", "%player%", args[1]);
+            return;
+        }
+        StorageManager storageManager = plugin.getStorageManager();
+        RoundThing.PlayerShapes shapes = plugin.getLoadedPlayerShapes(uuid);
+
+        try {
+            File exportFile = shapes != null ? storageManager.exportToYaml(uuid, shapes) : storageManager.exportStoredShapes(uuid);
+            if (exportFile == null) {
+                sendMessage(sender, "admin_export_no_data", "%player%", args[1]);
+                return;
+            }
+            int count = shapes != null ? shapes.all().size() : StorageManager.countExportedShapes(exportFile);
+            sendMessage(sender, "admin_export_success",
+                    "%count%", String.valueOf(count),
+                    "%player%", args[1],
+                    "%file%", plugin.getDataFolder().getName() + "/export/" + exportFile.getName());
+        } catch (IOException e) {
+            plugin.getLogger().severe("Could not export data for player " + uuid);
+            e.printStackTrace();
+            sendMessage(sender, "admin_export_failed", "%player%", args[1]);
+        }
+    }
+
+    /**
+     * @return The UUID of the player with the given name or UUID, or null if the server does not know them.
+     */
+    private UUID resolvePlayer(String nameOrUuid) {
+        Player online = Bukkit.getPlayerExact(nameOrUuid);
+        if (online != null) return online.getUniqueId();
+        try {
+            return UUID.fromString(nameOrUuid);
+        } catch (IllegalArgumentException e) {
+            OfflinePlayer offline = Bukkit.getOfflinePlayerIfCached(nameOrUuid);
+            return offline != null ? offline.getUniqueId() : null;
+        }
+    }
+
     private void sendMessage(CommandSender sender, String key, String... replacements) {
         if (sender instanceof Player) {
             localeManager.sendMessage((Player) sender, key, replacements);
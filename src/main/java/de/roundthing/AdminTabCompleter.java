@@ -1,15 +1,18 @@
 /**
  * Provides tab-completion for the /roundthing admin command. It suggests sub-commands
- * like 'setlimit' and 'reload', as well as example values for the limit.
+ * like 'setlimit', 'reload', 'stats', 'near' and 'export', as well as example values for the limit
+ * and the names of online players to export.
  *
  * @author Silas Hörz
  * @version 1.0
  */
 package de.roundthing;
 
+import org.bukkit.Bukkit;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
 import org.bukkit.command.TabCompleter;
+import org.bukkit.entity.Player;
 import org.bukkit.util.StringUtil;
 
 import java.util.ArrayList;
@@ -19,7 +22,7 @@ import java.util.List;
 
 public class AdminTabCompleter implements TabCompleter {
 
-    private static final List<String> SUB_COMMANDS = Arrays.asList("setlimit", "reload");
+    private static final List<String> SUB_COMMANDS = Arrays.asList("setlimit", "reload", "stats", "near", "export");
     private static final List<String> LIMIT_SUGGESTIONS = Arrays.asList("5000", "10000", "25000");
 
     @Override
@@ -27,7 +30,7 @@ public class AdminTabCompleter implements TabCompleter {
         final List<String> completions = new ArrayList<>();
         final String currentArg = args[args.length - 1];
 
-        // Suggestions for the first argument (setlimit, reload)
+        // Suggestions for the first argument (setlimit, reload, stats, near, export)
         if (args.length == 1) {
             StringUtil.copyPartialMatches(currentArg, SUB_COMMANDS, completions);
         }
@@ -35,6 +38,14 @@ public class AdminTabCompleter implements TabCompleter {
         else if (args.length == 2 && args[0].equalsIgnoreCase("setlimit")) {
             StringUtil.copyPartialMatches(currentArg, LIMIT_SUGGESTIONS, completions);
         }
+        // Suggestions for the player on /roundthing export <player>
+        else if (args.length == 2 && args[0].equalsIgnoreCase("export")) {
+            List<String> playerNames = new ArrayList<>();
+            for (Player player : Bukkit.getOnlinePlayers()) {
+                playerNames.add(player.getName());
+            }
+            StringUtil.copyPartialMatches(currentArg, playerNames, completions);
+        }
 
         Collections.sort(completions);
         return completions;
@@ -0,0 +1,297 @@
+/**
+ * The binary format of the player data files. A file starts with a magic number and a format
+ * version, followed by a table of the world names used by the shapes, the circles, spheres and
+ * lines, and a CRC32 of everything before it. Counts, world indices, thicknesses and colors are
+ * varints. Coordinates, diameters and rotations are varints as well when they lie on the grid of
+ * half blocks, which covers typed coordinates and diameters, and fall back to a float or a double
+ * otherwise, whichever stores them exactly. Loaded shapes are thus identical to the saved ones.
+ *
+ * @author Silas Hörz
+ * @version 1.0
+ */
+package de.roundthing;
+
+import org.bukkit.World;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+public final class BinaryShapeFormat {
+
+    public static final String FILE_EXTENSION = ".rts";
+
+    private static final int MAGIC = 0x52545348; // "RTSH"
+    private static final int VERSION = 1;
+
+    // The kinds of encoded decimals, stored in the low bits of their varint
+    private static final int DECIMAL_GRID = 0;
+    private static final int DECIMAL_FLOAT = 1;
+    private static final int DECIMAL_DOUBLE = 2;
+    private static final double MAX_GRID = 1L << 52; // Larger multiples of a half would lose precision as a long
+
+    private BinaryShapeFormat() {
+    }
+
+    /**
+     * Receives the decoded shapes as their stored values. Worlds are passed by name, so the shapes
+     * can be read without loading their worlds or building them.
+     */
+    public interface ShapeVisitor {
+        void circle(String name, String world, double x, double y, double z, double diameter, int thickness, int color, double rotationX, double rotationZ);
+
+        void sphere(String name, String world, double x, double y, double z, double diameter, int thickness, int color);
+
+        void line(String name, String world, double startX, double startY, double startZ, double endX, double endY, double endZ, int color);
+    }
+
+    /**
+     * @return The encoded shapes, ready to be written from position 0 to the limit.
+     */
+    public static ByteBuffer encode(Map<String, ParticleCircle> circles, Map<String, ParticleSphere> spheres, Map<String, ParticleLine> lines) {
+        List<String> worldNames = new ArrayList<>();
+        Map<World, Integer> worldIndices = new HashMap<>();
+        List<ParticleShape> shapes = new ArrayList<>(circles.values());
+        shapes.addAll(spheres.values());
+        shapes.addAll(lines.values());
+        for (ParticleShape shape : shapes) {
+            worldIndices.computeIfAbsent(shape.getWorld(), world -> {
+                worldNames.add(world.getName());
+                return worldNames.size() - 1;
+            });
+        }
+
+        Output out = new Output();
+        out.buffer.putInt(MAGIC);
+        out.buffer.put((byte) VERSION);
+        out.writeVarLong(worldNames.size());
+        for (String worldName : worldNames) out.writeString(worldName);
+
+        out.writeVarLong(circles.size());
+        for (Map.Entry<String, ParticleCircle> entry : circles.entrySet()) {
+            ParticleCircle circle = entry.getValue();
+            out.writeString(entry.getKey());
+            out.writeVarLong(worldIndices.get(circle.getWorld()));
+            out.writeDecimal(circle.getCenterX());
+            out.writeDecimal(circle.getCenterY());
+            out.writeDecimal(circle.getCenterZ());
+            out.writeDecimal(circle.getDiameter());
+            out.writeVarLong(circle.getThickness());
+            out.writeVarLong(circle.getColor().asRGB());
+            out.writeDecimal(circle.getRotationX());
+            out.writeDecimal(circle.getRotationZ());
+        }
+
+        out.writeVarLong(spheres.size());
+        for (Map.Entry<String, ParticleSphere> entry : spheres.entrySet()) {
+            ParticleSphere sphere = entry.getValue();
+            out.writeString(entry.getKey());
+            out.writeVarLong(worldIndices.get(sphere.getWorld()));
+            out.writeDecimal(sphere.getCenterX());
+            out.writeDecimal(sphere.getCenterY());
+            out.writeDecimal(sphere.getCenterZ());
+            out.writeDecimal(sphere.getDiameter());
+            out.writeVarLong(sphere.getThickness());
+            out.writeVarLong(sphere.getColor().asRGB());
+        }
+
+        out.writeVarLong(lines.size());
+        for (Map.Entry<String, ParticleLine> entry : lines.entrySet()) {
+            ParticleLine line = entry.getValue();
+            out.writeString(entry.getKey());
+            out.writeVarLong(worldIndices.get(line.getWorld()));
+            out.writeDecimal(line.getStart().getX());
+            out.writeDecimal(line.getStart().getY());
+            out.writeDecimal(line.getStart().getZ());
+            out.writeDecimal(line.getEnd().getX());
+            out.writeDecimal(line.getEnd().getY());
+            out.writeDecimal(line.getEnd().getZ());
+            out.writeVarLong(line.getColor().asRGB());
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(out.buffer.array(), 0, out.buffer.position());
+        out.ensureCapacity(Integer.BYTES);
+        out.buffer.putInt((int) crc.getValue());
+        out.buffer.flip();
+        return out.buffer;
+    }
+
+    /**
+     * Decodes the shapes from the buffer, between its position and limit, and passes each of them to the visitor.
+     * The values are passed as stored; whether they make a valid shape is up to the visitor.
+     * @throws IOException If the data is not a shape file of a known version, is truncated or is corrupted.
+     */
+    public static void decode(ByteBuffer buffer, ShapeVisitor visitor) throws IOException {
+        if (buffer.remaining() < Integer.BYTES + 1 + Integer.BYTES || buffer.getInt(buffer.position()) != MAGIC) {
+            throw new IOException("Not a RoundThing shape file");
+        }
+        int crcOffset = buffer.limit() - Integer.BYTES;
+        CRC32 crc = new CRC32();
+        ByteBuffer checked = buffer.duplicate();
+        checked.limit(crcOffset);
+        crc.update(checked);
+        if ((int) crc.getValue() != buffer.getInt(crcOffset)) {
+            throw new IOException("Checksum mismatch, the file is corrupted");
+        }
+
+        Input in = new Input(buffer.duplicate());
+        in.buffer.limit(crcOffset);
+        try {
+            in.buffer.getInt(); // The magic number, checked above
+            int version = in.buffer.get() & 0xFF;
+            if (version != VERSION) throw new IOException("Unsupported format version " + version);
+
+            String[] worlds = new String[in.readCount()];
+            for (int i = 0; i < worlds.length; i++) worlds[i] = in.readString();
+
+            int circleCount = in.readCount();
+            for (int i = 0; i < circleCount; i++) {
+                String name = in.readString();
+                String world = worlds[in.readIndex(worlds.length)];
+                double x = in.readDecimal(), y = in.readDecimal(), z = in.readDecimal();
+                double diameter = in.readDecimal();
+                int thickness = (int) in.readVarLong();
+                int color = (int) in.readVarLong();
+                double rotX = in.readDecimal();
+                double rotZ = in.readDecimal();
+                visitor.circle(name, world, x, y, z, diameter, thickness, color, rotX, rotZ);
+            }
+
+            int sphereCount = in.readCount();
+            for (int i = 0; i < sphereCount; i++) {
+                String name = in.readString();
+                String world = worlds[in.readIndex(worlds.length)];
+                double x = in.readDecimal(), y = in.readDecimal(), z = in.readDecimal();
+                double diameter = in.readDecimal();
+                int thickness = (int) in.readVarLong();
+                int color = (int) in.readVarLong();
+                visitor.sphere(name, world, x, y, z, diameter, thickness, color);
+            }
+
+            int lineCount = in.readCount();
+            for (int i = 0; i < lineCount; i++) {
+                String name = in.readString();
+                String world = worlds[in.readIndex(worlds.length)];
+                double startX = in.readDecimal(), startY = in.readDecimal(), startZ = in.readDecimal();
+                double endX = in.readDecimal(), endY = in.readDecimal(), endZ = in.readDecimal();
+                int color = (int) in.readVarLong();
+                visitor.line(name, world, startX, startY, startZ, endX, endY, endZ, color);
+            }
+
+            if (in.buffer.hasRemaining()) throw new IOException("Unexpected data after the shapes");
+        } catch (BufferUnderflowException e) {
+            throw new IOException("The file is truncated", e);
+        }
+    }
+
+    /**
+     * A buffer that grows while the shapes are encoded.
+     */
+    private static final class Output {
+        private ByteBuffer buffer = ByteBuffer.allocate(1024);
+
+        private void ensureCapacity(int bytes) {
+            if (buffer.remaining() >= bytes) return;
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+
+        private void writeVarLong(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer.put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            buffer.put((byte) value);
+        }
+
+        private void writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            ensureCapacity(bytes.length);
+            buffer.put(bytes);
+        }
+
+        private void writeDecimal(double value) {
+            double halves = value * 2;
+            if (halves == Math.rint(halves) && Math.abs(halves) <= MAX_GRID) {
+                long grid = (long) halves;
+                writeVarLong(((grid << 1) ^ (grid >> 63)) << 2 | DECIMAL_GRID); // Zigzag, so small negative values stay short
+            } else if ((float) value == value) {
+                writeVarLong(DECIMAL_FLOAT);
+                ensureCapacity(Float.BYTES);
+                buffer.putFloat((float) value);
+            } else {
+                writeVarLong(DECIMAL_DOUBLE);
+                ensureCapacity(Double.BYTES);
+                buffer.putDouble(value);
+            }
+        }
+    }
+
+    /**
+     * Reads the encoded values. A read beyond the end throws a BufferUnderflowException.
+     */
+    private static final class Input {
+        private final ByteBuffer buffer;
+
+        private Input(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        private long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = buffer.get();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        /**
+         * @return A count, which can never exceed the remaining bytes as every element takes at least one.
+         */
+        private int readCount() throws IOException {
+            long count = readVarLong();
+            if (count < 0 || count > buffer.remaining()) throw new IOException("Invalid count " + count);
+            return (int) count;
+        }
+
+        private int readIndex(int size) throws IOException {
+            long index = readVarLong();
+            if (index < 0 || index >= size) throw new IOException("Invalid world index " + index);
+            return (int) index;
+        }
+
+        private String readString() throws IOException {
+            byte[] bytes = new byte[readCount()];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private double readDecimal() throws IOException {
+            long header = readVarLong();
+            switch ((int) (header & 3)) {
+                case DECIMAL_GRID:
+                    long zigzag = header >>> 2;
+                    return ((zigzag >>> 1) ^ -(zigzag & 1)) / 2.0;
+                case DECIMAL_FLOAT:
+                    return buffer.getFloat();
+                case DECIMAL_DOUBLE:
+                    return buffer.getDouble();
+                default:
+                    throw new IOException("Invalid decimal kind " + (header & 3));
+            }
+        }
+    }
+}
@@ -79,7 +79,10 @@ public class CircleCommand implements CommandExecutor {
         try {
             String name = args[1];
             double diameter = Double.parseDouble(args[2]);
-            UUID uuid = player.getUniqueId();
+            if (!(diameter > 0)) {
+                localeManager.sendMessage(player, "invalid_diameter");
+                return;
+            }
             Location center = player.getLocation();
             int thickness = 1;
             Color color = Color.LIME;
@@ -109,35 +112,24 @@ public class CircleCommand implements CommandExecutor {
                 return;
             }
 
-            // Particle Budget Check
-            ParticleCircle testCircle = new ParticleCircle(center, diameter, thickness, color, rotX, rotZ);
-            int newParticleCount = testCircle.getParticleCount();
-            RoundThing.PlayerShapes playerShapes = plugin.getPlayerShapes(uuid);
-
-            int oldParticleCount = 0;
-            if (playerShapes.circles.containsKey(name)) {
-                oldParticleCount = playerShapes.circles.get(name).getParticleCount();
-            }
-
-            if (playerShapes.currentParticleCount - oldParticleCount + newParticleCount > plugin.getParticleLimit()) {
-                localeManager.sendMessage(player, "budget_exceeded",
-                        "%new%", String.valueOf(newParticleCount),
-                        "%current%", String.valueOf(playerShapes.currentParticleCount - oldParticleCount),
-                        "%limit%", String.valueOf(plugin.getParticleLimit())
-                );
-                return;
-            }
-
-            playerShapes.circles.put(name, testCircle);
-            playerShapes.currentParticleCount = playerShapes.currentParticleCount - oldParticleCount + newParticleCount;
-            plugin.savePlayerData(uuid);
-            localeManager.sendMessage(player, "circle_success", "%name%", name);
+            createCircle(player, name, center, diameter, thickness, color, rotX, rotZ);
 
         } catch (NumberFormatException e) {
             localeManager.sendMessage(player, "invalid_number");
         }
     }
 
+    /**
+     * Hands the circle over to the creation pipeline, which checks the particle budget,
+     * rasterizes the circle off the command thread and commits it once it is ready.
+     */
+    private void createCircle(Player player, String name, Location center, double diameter, int thickness, Color color, double rotX, double rotZ) {
+        plugin.getCreationPipeline().submit(player, name, shapes -> shapes.circles,
+                maxParticles -> ParticleCircle.countParticles(diameter, thickness, rotX, rotZ, maxParticles),
+                () -> new ParticleCircle(center, diameter, thickness, color, rotX, rotZ),
+                "circle_success");
+    }
+
     private void handleDelete(Player player, String[] args) {
         if (args.length != 2) {
             sendHelpMessage(player);
@@ -153,8 +145,9 @@ public class CircleCommand implements CommandExecutor {
                 localeManager.sendMessage(player, "circle_list_empty");
                 return;
             }
-            playerShapes.currentParticleCount -= playerCircles.values().stream().mapToInt(ParticleCircle::getParticleCount).sum();
+            playerCircles.values().forEach(plugin.getShapeIndex()::remove);
             playerCircles.clear();
+            plugin.recountParticles(playerShapes);
             localeManager.sendMessage(player, "circle_deleted_all");
         } else {
             ParticleCircle removedCircle = playerCircles.remove(name);
@@ -162,7 +155,8 @@ public class CircleCommand implements CommandExecutor {
                 localeManager.sendMessage(player, "circle_not_found");
                 return;
             } else {
-                playerShapes.currentParticleCount -= removedCircle.getParticleCount();
+                plugin.recountParticles(playerShapes);
+                plugin.getShapeIndex().remove(removedCircle);
                 localeManager.sendMessage(player, "circle_deleted", "%name%", name);
             }
         }
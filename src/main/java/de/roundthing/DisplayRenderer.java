@@ -0,0 +1,422 @@
+/**
+ * The alternative to drawing shapes with particles: every visible shape is built once from
+ * block display entities, which the clients keep rendering on their own, so a static shape
+ * costs no bandwidth and no work per tick after it has been spawned. Each display is a thin,
+ * full-bright bar of the stained glass closest to the shape's color, covering a contiguous run
+ * of voxels along the axis that needs the fewest runs, so even large shapes only need a
+ * fraction of their voxel count in entities. The runs are computed on the render thread; until
+ * they are ready, the shape is drawn with particles.
+ * <p>
+ * The displays follow the render frames of the {@link RenderFrameProducer}. Shapes that enter a
+ * frame get their displays, and shapes that leave it because they were deleted, their owner
+ * left, their chunks were unloaded or no player is near them anymore lose them again. The
+ * displays are not saved with the world. Like particles, they are only seen by the players near
+ * the shape: they are spawned hidden, shown to the viewers of the shape in the frame and hidden
+ * again from players who move away. Displays the server removes, like those of an unloaded
+ * chunk, are noticed through their removal events and spawned again with the next frame, so a
+ * frame never has to check its entities. Entities are only spawned and removed on the thread
+ * that owns them, and shown or hidden on the thread that owns the player.
+ * <p>
+ * The number of displays is capped. Visible shapes whose displays no longer fit are left to the
+ * particle renderer until enough displays are free again.
+ *
+ * @author Silas Hörz
+ * @version 1.0
+ */
+package de.roundthing;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Color;
+import org.bukkit.DyeColor;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.entity.BlockDisplay;
+import org.bukkit.entity.Display;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Player;
+import org.bukkit.util.Transformation;
+import org.joml.Quaternionf;
+import org.joml.Vector3f;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class DisplayRenderer {
+
+    private static final float MARKER_SIZE = 0.2f; // The width of a bar, in blocks
+    private static final int AXIS_X = 0, AXIS_Y = 1, AXIS_Z = 2;
+
+    private final RoundThing plugin;
+    private final ShapeRenderer renderer;
+    private final Map<ParticleShape, ShapeDisplays> displays = new IdentityHashMap<>();
+    // The shape and run of every spawned display, so the removal events of the server find them
+    private final Map<UUID, DisplayRun> spawned = new ConcurrentHashMap<>();
+    private volatile boolean changed = false;
+
+    /**
+     * @param renderer The particle renderer, whose thread computes the runs of the shapes.
+     */
+    public DisplayRenderer(RoundThing plugin, ShapeRenderer renderer) {
+        this.plugin = plugin;
+        this.renderer = renderer;
+    }
+
+    /**
+     * Spawns the displays of the shapes in the frame that do not have them yet, or lost some of them,
+     * shows them to the viewers of the shape and removes the displays of all other shapes. Runs on
+     * the thread of the frame producer.
+     * @return The jobs of the shapes whose runs are not ready yet or that did not fit into the display limit, by owner.
+     */
+    public synchronized List<List<RenderFrame.Job>> sync(RenderFrame frame) {
+        changed = false;
+        // A shape has a job for every detail tier it is seen at, and its displays are shown to the viewers of all of them
+        Map<ParticleShape, Set<Player>> viewersByShape = new IdentityHashMap<>();
+        for (List<RenderFrame.Job> jobs : frame.getJobsByOwner()) {
+            for (RenderFrame.Job job : jobs) {
+                viewersByShape.computeIfAbsent(job.getShape(), shape -> Collections.newSetFromMap(new IdentityHashMap<>()))
+                        .addAll(job.getViewers());
+            }
+        }
+
+        int used = 0;
+        Iterator<Map.Entry<ParticleShape, ShapeDisplays>> iterator = displays.entrySet().iterator();
+        while (iterator.hasNext()) {
+            ShapeDisplays shapeDisplays = iterator.next().getValue();
+            if (viewersByShape.containsKey(shapeDisplays.shape)) {
+                if (shapeDisplays.shown) used += shapeDisplays.size();
+                continue;
+            }
+            shapeDisplays.remove(false);
+            iterator.remove();
+        }
+
+        // Shapes that already have displays keep them; new ones get theirs while the limit allows it
+        int maxDisplays = plugin.getMaxDisplays();
+        List<List<RenderFrame.Job>> leftover = new ArrayList<>();
+        for (List<RenderFrame.Job> jobs : frame.getJobsByOwner()) {
+            List<RenderFrame.Job> ownerLeftover = null;
+            for (RenderFrame.Job job : jobs) {
+                ShapeDisplays shapeDisplays = displays.computeIfAbsent(job.getShape(), ShapeDisplays::new);
+                if (!shapeDisplays.shown && shapeDisplays.isPrepared()
+                        && (maxDisplays == 0 || used + shapeDisplays.size() <= maxDisplays)) {
+                    shapeDisplays.shown = true;
+                    used += shapeDisplays.size();
+                }
+                if (shapeDisplays.shown) {
+                    shapeDisplays.showTo(viewersByShape.get(job.getShape()));
+                    shapeDisplays.spawnMissing();
+                    continue;
+                }
+                if (ownerLeftover == null) {
+                    ownerLeftover = new ArrayList<>();
+                    leftover.add(ownerLeftover);
+                }
+                ownerLeftover.add(job);
+            }
+        }
+        return leftover;
+    }
+
+    /**
+     * @return Whether the server removed displays since the last sync, which are then spawned again,
+     *         or the runs of a shape became ready, so its displays can replace its particles.
+     */
+    public boolean hasChanged() {
+        return changed;
+    }
+
+    /**
+     * Called for every entity the server removes from a world, on the thread that owns it. Displays
+     * of this renderer are marked as missing, unless it removed them itself.
+     */
+    public void entityRemoved(Entity entity) {
+        DisplayRun run = spawned.remove(entity.getUniqueId());
+        if (run != null) run.displays.lost(run.index, entity.getUniqueId());
+    }
+
+    /**
+     * Removes all displays, when the plugin is disabled or switches back to particles.
+     * @param disabling Whether the plugin is being disabled and can no longer schedule tasks.
+     */
+    public synchronized void clear(boolean disabling) {
+        for (ShapeDisplays shapeDisplays : displays.values()) shapeDisplays.remove(disabling);
+        displays.clear();
+    }
+
+    /**
+     * A display of a run, for looking it up when the server removes it.
+     */
+    private static final class DisplayRun {
+        private final ShapeDisplays displays;
+        private final int index;
+
+        private DisplayRun(ShapeDisplays displays, int index) {
+            this.displays = displays;
+            this.index = index;
+        }
+    }
+
+    /**
+     * The displays of one shape. The runs are computed on the render thread when the shape first
+     * becomes visible; the entities are filled in by the spawn tasks, which may run on other threads.
+     */
+    private final class ShapeDisplays {
+        private final ParticleShape shape;
+        private final BlockData block;
+        private boolean shown = false; // Whether the shape fit into the display limit, guarded by the renderer
+        private int axis; // Guarded by this object, like the fields below
+        private int[] runs = null; // Start x/y/z offsets and length of every run, once they are ready
+        private Entity[] entities;
+        private boolean[] spawning;
+        private int missing; // The runs that neither have a display nor are being spawned
+        private boolean removed = false;
+        private Set<Player> viewers = Collections.emptySet(); // The players the displays are shown to
+
+        private ShapeDisplays(ParticleShape shape) {
+            this.shape = shape;
+            this.block = closestGlass(shape.getColor()).createBlockData();
+            renderer.execute(this::prepare);
+        }
+
+        /**
+         * Computes the runs along the axis that needs the fewest of them. Runs on the render thread.
+         */
+        private void prepare() {
+            long[] voxels = collectVoxels(shape);
+            int bestAxis = AXIS_X;
+            int bestCount = Integer.MAX_VALUE;
+            for (int candidate = AXIS_X; candidate <= AXIS_Z; candidate++) {
+                int count = countRuns(voxels, candidate);
+                if (count < bestCount) {
+                    bestAxis = candidate;
+                    bestCount = count;
+                }
+            }
+            int[] bestRuns = collectRuns(voxels, bestAxis, bestCount);
+            synchronized (this) {
+                this.axis = bestAxis;
+                this.runs = bestRuns;
+                this.entities = new Entity[bestCount];
+                this.spawning = new boolean[bestCount];
+                this.missing = bestCount;
+            }
+            changed = true;
+        }
+
+        private synchronized boolean isPrepared() {
+            return runs != null;
+        }
+
+        /**
+         * @return The number of displays of the shape. Only valid once the runs are ready.
+         */
+        private synchronized int size() {
+            return entities.length;
+        }
+
+        /**
+         * Shows the displays to players who started to see the shape and hides them from those who stopped.
+         */
+        private synchronized void showTo(Set<Player> players) {
+            if (players.equals(viewers)) return;
+            List<Entity> current = new ArrayList<>(entities.length);
+            for (Entity entity : entities) {
+                if (entity != null) current.add(entity);
+            }
+            if (!current.isEmpty()) {
+                for (Player player : players) {
+                    if (!viewers.contains(player)) setVisible(player, current, true);
+                }
+                for (Player player : viewers) {
+                    if (!players.contains(player)) setVisible(player, current, false);
+                }
+            }
+            viewers = players;
+        }
+
+        private synchronized void spawnMissing() {
+            if (missing == 0) return;
+            World world = shape.getWorld();
+            ShapeIndex shapeIndex = plugin.getShapeIndex();
+            for (int i = 0; i < entities.length; i++) {
+                if (spawning[i] || entities[i] != null) continue;
+                int blockX = shape.getOriginX() + runs[i * 4];
+                int blockY = shape.getOriginY() + runs[i * 4 + 1];
+                int blockZ = shape.getOriginZ() + runs[i * 4 + 2];
+                // Runs in unloaded chunks are spawned with a later frame, once their chunk has been loaded
+                if (!shapeIndex.isChunkLoaded(world, blockX >> 4, blockZ >> 4)) continue;
+
+                spawning[i] = true;
+                missing--;
+                int index = i;
+                Location location = new Location(world, blockX, blockY, blockZ);
+                Runnable spawn = () -> {
+                    // Checked again on the thread that owns the chunk, which may have unloaded it in the meantime
+                    BlockDisplay display = world.isChunkLoaded(blockX >> 4, blockZ >> 4)
+                            ? world.spawn(location, BlockDisplay.class, entity -> configure(entity, runs[index * 4 + 3]))
+                            : null;
+                    synchronized (this) {
+                        spawning[index] = false;
+                        if (display == null) {
+                            missing++;
+                        } else if (removed) {
+                            display.remove();
+                        } else {
+                            entities[index] = display;
+                            spawned.put(display.getUniqueId(), new DisplayRun(this, index));
+                            for (Player viewer : viewers) setVisible(viewer, Collections.singletonList(display), true);
+                        }
+                    }
+                };
+                if (plugin.isFoliaServer()) {
+                    Bukkit.getRegionScheduler().execute(plugin, location, spawn);
+                } else {
+                    spawn.run();
+                }
+            }
+        }
+
+        private void configure(BlockDisplay display, int length) {
+            float offset = (1 - MARKER_SIZE) / 2;
+            float runLength = length - 1 + MARKER_SIZE;
+            Vector3f scale = new Vector3f(axis == AXIS_X ? runLength : MARKER_SIZE, axis == AXIS_Y ? runLength : MARKER_SIZE, axis == AXIS_Z ? runLength : MARKER_SIZE);
+            display.setPersistent(false);
+            display.setVisibleByDefault(false); // Shown to the viewers of the shape only
+            display.setBlock(block);
+            display.setTransformation(new Transformation(new Vector3f(offset, offset, offset), new Quaternionf(), scale, new Quaternionf()));
+            display.setBrightness(new Display.Brightness(15, 15));
+            display.setViewRange((float) (plugin.getRenderDistance() / 64.0)); // The view range is a multiple of 64 blocks
+        }
+
+        /**
+         * Marks the display of a run as missing after the server removed it.
+         */
+        private synchronized void lost(int index, UUID entityId) {
+            Entity entity = entities[index];
+            if (removed || entity == null || !entity.getUniqueId().equals(entityId)) return;
+            entities[index] = null;
+            missing++;
+            changed = true;
+        }
+
+        private synchronized void remove(boolean disabling) {
+            removed = true;
+            if (entities == null) return; // The runs are not ready yet, so nothing was spawned
+            for (int i = 0; i < entities.length; i++) {
+                Entity entity = entities[i];
+                if (entity == null) continue;
+                entities[i] = null;
+                spawned.remove(entity.getUniqueId());
+                if (!plugin.isFoliaServer()) {
+                    entity.remove();
+                } else if (!disabling) {
+                    entity.getScheduler().execute(plugin, entity::remove, null, 1L);
+                } else if (Bukkit.isOwnedByCurrentRegion(entity)) {
+                    // Other regions cannot be reached anymore; their displays vanish with their chunks as they are not saved
+                    entity.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Shows or hides the displays for a player, on the thread that owns the player.
+     */
+    private void setVisible(Player player, List<Entity> entities, boolean visible) {
+        Runnable task = () -> {
+            for (Entity entity : entities) {
+                if (visible) {
+                    player.showEntity(plugin, entity);
+                } else {
+                    player.hideEntity(plugin, entity);
+                }
+            }
+        };
+        if (plugin.isFoliaServer()) {
+            player.getScheduler().execute(plugin, task, null, 1L);
+        } else {
+            task.run();
+        }
+    }
+
+    /**
+     * @return The voxels of the shape, packed and sorted, so they can be looked up by binary search.
+     */
+    private static long[] collectVoxels(ParticleShape shape) {
+        long[] voxels = new long[shape.getParticleCount()];
+        int[] count = {0};
+        shape.forEachVoxel((x, y, z) -> voxels[count[0]++] = VoxelBuffer.pack(x, y, z));
+        Arrays.sort(voxels, 0, count[0]);
+        return count[0] == voxels.length ? voxels : Arrays.copyOf(voxels, count[0]);
+    }
+
+    /**
+     * @return The number of runs along the axis, which is the number of voxels without a predecessor on it.
+     */
+    private static int countRuns(long[] voxels, int axis) {
+        int count = 0;
+        for (long voxel : voxels) {
+            if (!contains(voxels, neighbour(voxel, axis, -1))) count++;
+        }
+        return count;
+    }
+
+    private static int[] collectRuns(long[] voxels, int axis, int count) {
+        int[] runs = new int[count * 4];
+        int run = 0;
+        for (long voxel : voxels) {
+            if (contains(voxels, neighbour(voxel, axis, -1))) continue;
+            int length = 1;
+            while (contains(voxels, neighbour(voxel, axis, length))) length++;
+            runs[run * 4] = VoxelBuffer.unpackX(voxel);
+            runs[run * 4 + 1] = VoxelBuffer.unpackY(voxel);
+            runs[run * 4 + 2] = VoxelBuffer.unpackZ(voxel);
+            runs[run * 4 + 3] = length;
+            run++;
+        }
+        return runs;
+    }
+
+    private static long neighbour(long voxel, int axis, int distance) {
+        int x = VoxelBuffer.unpackX(voxel), y = VoxelBuffer.unpackY(voxel), z = VoxelBuffer.unpackZ(voxel);
+        switch (axis) {
+            case AXIS_X: return VoxelBuffer.pack(x + distance, y, z);
+            case AXIS_Y: return VoxelBuffer.pack(x, y + distance, z);
+            default: return VoxelBuffer.pack(x, y, z + distance);
+        }
+    }
+
+    private static boolean contains(long[] voxels, long voxel) {
+        return Arrays.binarySearch(voxels, voxel) >= 0;
+    }
+
+    /**
+     * @return The stained glass whose dye color is closest to the given color.
+     */
+    private static Material closestGlass(Color color) {
+        DyeColor closest = DyeColor.WHITE;
+        long closestDistance = Long.MAX_VALUE;
+        for (DyeColor dye : DyeColor.values()) {
+            Color dyeColor = dye.getColor();
+            long dr = color.getRed() - dyeColor.getRed();
+            long dg = color.getGreen() - dyeColor.getGreen();
+            long db = color.getBlue() - dyeColor.getBlue();
+            long distance = dr * dr + dg * dg + db * db;
+            if (distance < closestDistance) {
+                closest = dye;
+                closestDistance = distance;
+            }
+        }
+        return Material.valueOf(closest.name() + "_STAINED_GLASS");
+    }
+}
@@ -53,7 +53,6 @@ public class LineCommand implements CommandExecutor {
         }
         try {
             String name = args[1];
-            UUID uuid = player.getUniqueId();
 
             Location start = new Location(player.getWorld(), Double.parseDouble(args[2]), Double.parseDouble(args[3]), Double.parseDouble(args[4]));
             Location end = new Location(player.getWorld(), Double.parseDouble(args[5]), Double.parseDouble(args[6]), Double.parseDouble(args[7]));
@@ -67,30 +66,24 @@ public class LineCommand implements CommandExecutor {
                 }
             }
 
-            ParticleLine testLine = new ParticleLine(start, end, color);
-            int newParticleCount = testLine.getParticleCount();
-            RoundThing.PlayerShapes playerShapes = plugin.getPlayerShapes(uuid);
-
-            int oldParticleCount = 0;
-            if (playerShapes.lines.containsKey(name)) {
-                oldParticleCount = playerShapes.lines.get(name).getParticleCount();
-            }
-
-            if (playerShapes.currentParticleCount - oldParticleCount + newParticleCount > plugin.getParticleLimit()) {
-                localeManager.sendMessage(player, "budget_exceeded", "%new%", String.valueOf(newParticleCount), "%current%", String.valueOf(playerShapes.currentParticleCount - oldParticleCount), "%limit%", String.valueOf(plugin.getParticleLimit()));
-                return;
-            }
-
-            playerShapes.lines.put(name, testLine);
-            playerShapes.currentParticleCount = playerShapes.currentParticleCount - oldParticleCount + newParticleCount;
-            plugin.savePlayerData(uuid);
-            localeManager.sendMessage(player, "line_success", "%name%", name);
+            createLine(player, name, start, end, color);
 
         } catch (NumberFormatException e) {
             localeManager.sendMessage(player, "invalid_number");
         }
     }
 
+    /**
+     * Hands the line over to the creation pipeline, which checks the particle budget
+     * off the command thread and commits the line once it is ready.
+     */
+    private void createLine(Player player, String name, Location start, Location end, Color color) {
+        plugin.getCreationPipeline().submit(player, name, shapes -> shapes.lines,
+                maxParticles -> ParticleLine.countParticles(start, end),
+                () -> new ParticleLine(start, end, color),
+                "line_success");
+    }
+
     private void handleDelete(Player player, String[] args) {
         if (args.length != 2) {
             sendHelpMessage(player);
@@ -106,8 +99,9 @@ public class LineCommand implements CommandExecutor {
                 localeManager.sendMessage(player, "line_list_empty");
                 return;
             }
-            playerShapes.currentParticleCount -= playerLines.values().stream().mapToInt(ParticleLine::getParticleCount).sum();
+            playerLines.values().forEach(plugin.getShapeIndex()::remove);
             playerLines.clear();
+            plugin.recountParticles(playerShapes);
             localeManager.sendMessage(player, "line_deleted_all");
         } else {
             ParticleLine removedLine = playerLines.remove(name);
@@ -115,7 +109,8 @@ public class LineCommand implements CommandExecutor {
                 localeManager.sendMessage(player, "line_not_found");
                 return;
             } else {
-                playerShapes.currentParticleCount -= removedLine.getParticleCount();
+                plugin.recountParticles(playerShapes);
+                plugin.getShapeIndex().remove(removedLine);
                 localeManager.sendMessage(player, "line_deleted", "%name%", name);
             }
         }
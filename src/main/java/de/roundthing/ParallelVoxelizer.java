@@ -0,0 +1,88 @@
+/**
+ * Splits the rasterization of large shapes into slabs along one axis and runs them on the
+ * common fork/join pool. Each slab produces a partial result, and the partial results are
+ * merged in slab order, so the outcome is identical to a sequential run. Shapes below the
+ * configured diameter threshold stay on the cheaper sequential path.
+ *
+ * @author Silas Hörz
+ * @version 1.0
+ */
+package de.roundthing;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+
+public final class ParallelVoxelizer {
+
+    public static final int DEFAULT_THRESHOLD = 200;
+    private static final int MIN_SLAB_SIZE = 8;
+
+    private static volatile int threshold = DEFAULT_THRESHOLD;
+
+    private ParallelVoxelizer() {
+    }
+
+    /**
+     * Computes one slab of a shape.
+     */
+    @FunctionalInterface
+    public interface SlabTask<T> {
+        /**
+         * @return The partial result for the slab [from, to).
+         */
+        T compute(int from, int to);
+    }
+
+    /**
+     * Runs the task over [from, to), either in one piece or split into slabs on the fork/join pool.
+     * @param diameter The diameter of the shape, compared against the threshold.
+     * @param merge Combines the results of two adjacent slabs, the lower one first.
+     * @return The merged result.
+     */
+    public static <T> T run(int from, int to, double diameter, SlabTask<T> task, BinaryOperator<T> merge) {
+        if (diameter < threshold || to - from < 2 * MIN_SLAB_SIZE) {
+            return task.compute(from, to);
+        }
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        // A few slabs per worker balance the uneven cost of the slabs near the middle of round shapes
+        int slabSize = Math.max(MIN_SLAB_SIZE, (to - from) / (pool.getParallelism() * 4));
+        return pool.invoke(new Slab<>(from, to, slabSize, task, merge));
+    }
+
+    /**
+     * Sets the diameter from which shapes are rasterized in parallel.
+     */
+    public static void setThreshold(int diameter) {
+        threshold = Math.max(0, diameter);
+    }
+
+    private static final class Slab<T> extends RecursiveTask<T> {
+        private static final long serialVersionUID = 1L; // Tasks are never serialized, but ForkJoinTask is Serializable
+
+        private final int from, to, slabSize;
+        private final SlabTask<T> task;
+        private final BinaryOperator<T> merge;
+
+        private Slab(int from, int to, int slabSize, SlabTask<T> task, BinaryOperator<T> merge) {
+            this.from = from;
+            this.to = to;
+            this.slabSize = slabSize;
+            this.task = task;
+            this.merge = merge;
+        }
+
+        @Override
+        protected T compute() {
+            if (to - from <= slabSize) {
+                return task.compute(from, to);
+            }
+            int middle = from + (to - from) / 2;
+            Slab<T> lower = new Slab<>(from, middle, slabSize, task, merge);
+            Slab<T> upper = new Slab<>(middle, to, slabSize, task, merge);
+            upper.fork();
+            T lowerResult = lower.compute();
+            return merge.apply(lowerResult, upper.join());
+        }
+    }
+}
@@ -1,7 +1,7 @@
 /**
  * Represents a single particle circle. This class holds all properties of a circle,
- * such as its position, size, and rotation, and contains the logic for rendering it
- * and calculating its particle count.
+ * such as its position, size, and rotation, and contains the logic for rasterizing it
+ * into the voxels that are rendered.
  *
  * @author Silas Hörz
  * @version 1.0
@@ -10,128 +10,382 @@ package de.roundthing;
 
 import org.bukkit.Color;
 import org.bukkit.Location;
-import org.bukkit.Particle;
-import org.bukkit.World;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class ParticleCircle {
+public class ParticleCircle extends ParticleShape {
+
+    // Every point this far from the center lies outside the center column, however the plane is tilted
+    private static final double MIN_TRACE_RADIUS = 1.25;
+    // Tilted circles up to this many voxels are kept as a template when they are counted
+    private static final long MAX_COUNTED_TEMPLATE_SIZE = 1 << 20;
 
-    private final World world;
     private final double centerX, centerY, centerZ;
     private final double diameter;
     private final int thickness;
     private final double rotationX;
     private final double rotationZ;
-    private final Color color;
-    private final Particle.DustOptions dustOptions;
+    private final VoxelBuffer voxels;
 
     public ParticleCircle(Location center, double diameter, int thickness, Color color, double rotationX, double rotationZ) {
-        this.world = center.getWorld();
+        super(center.getWorld(), center.getBlockX(), center.getBlockY(), center.getBlockZ(), color);
+        checkDiameter(diameter);
+        this.voxels = template(diameter, thickness, rotationX, rotationZ);
+        setBounds(voxels.getMinX(), voxels.getMinY(), voxels.getMinZ(), voxels.getMaxX(), voxels.getMaxY(), voxels.getMaxZ());
         this.centerX = center.getX();
         this.centerY = center.getY();
         this.centerZ = center.getZ();
         this.diameter = diameter;
         this.thickness = thickness;
-        this.color = color;
         this.rotationX = rotationX;
         this.rotationZ = rotationZ;
-        this.dustOptions = new Particle.DustOptions(color, 1.5f);
+    }
+
+    @Override
+    public void forEachVoxel(VoxelVisitor visitor, int tier, int from, int to) {
+        // Every tier is a prefix of the template, so the range applies to it directly
+        voxels.forEach(visitor, from, Math.min(to, voxels.getTierSize(tier)));
+    }
+
+    @Override
+    public int getParticleCount() {
+        return voxels.size();
+    }
+
+    @Override
+    public int getTierParticleCount(int tier) {
+        return voxels.getTierSize(tier);
     }
 
     /**
-     * Draws the circle in the world by spawning particles.
+     * @return The shared voxel template for a circle with the given parameters.
      */
-    public void draw() {
-        double radius = this.diameter / 2.0;
+    private static VoxelBuffer template(double diameter, int thickness, double rotationX, double rotationZ) {
+        return TemplateCache.getInstance().get(TemplateCache.Kind.CIRCLE, diameter, thickness, rotationX, rotationZ,
+                () -> rasterize(diameter, thickness, rotationX, rotationZ));
+    }
+
+    /**
+     * Rasterizes the rotated circle into unique block offsets relative to its center block.
+     * The center marker is always part of the result.
+     * @return The voxel offsets of the circle.
+     */
+    private static VoxelBuffer rasterize(double diameter, int thickness, double rotationX, double rotationZ) {
+        VoxelBuffer.Builder builder = new VoxelBuffer.Builder();
+        scanPlane(diameter, thickness, rotationX, rotationZ, builder, Long.MAX_VALUE, Long.MAX_VALUE);
+        return builder.build();
+    }
+
+    /**
+     * Scans the tilted plane of the circle directly in 3D. The dominant axis of the plane normal
+     * becomes the column axis, and every (u, v) column perpendicular to it receives at most one
+     * voxel: the block the plane passes through. A column is kept if the in-plane distance of that
+     * plane point lies on the ring. Each voxel is therefore emitted exactly once, without rotating
+     * and rounding disk points and without a dedupe structure.
+     * @param builder Receives the voxel offsets, unless there are more than maxBuilt of them.
+     * @param maxVoxels The scan stops as soon as it has marked more columns than this, without building anything.
+     * @return The number of voxels, including the center marker, or a lower bound of it above maxVoxels.
+     */
+    private static long scanPlane(double diameter, int thickness, double rotationX, double rotationZ, VoxelBuffer.Builder builder,
+                                  long maxBuilt, long maxVoxels) {
+        double radius = diameter / 2.0;
         int scanRadius = (int) Math.ceil(radius);
 
-        double radX = Math.toRadians(this.rotationX);
-        double radZ = Math.toRadians(this.rotationZ);
-        double cosX = Math.cos(radX), sinX = Math.sin(radX);
-        double cosZ = Math.cos(radZ), sinZ = Math.sin(radZ);
+        // The normal of the flat circle (0, 1, 0), rotated around the X axis first and then around the Z axis
+        double radX = Math.toRadians(rotationX);
+        double radZ = Math.toRadians(rotationZ);
+        double[] normal = {
+                snap(-Math.cos(radX) * Math.sin(radZ)),
+                snap(Math.cos(radX) * Math.cos(radZ)),
+                snap(Math.sin(radX))
+        };
+        int wAxis = 0;
+        if (Math.abs(normal[1]) > Math.abs(normal[wAxis])) wAxis = 1;
+        if (Math.abs(normal[2]) > Math.abs(normal[wAxis])) wAxis = 2;
+        int uAxis = (wAxis + 1) % 3;
+        int vAxis = (wAxis + 2) % 3;
+        // How far the plane rises along the column axis per step in u and v. Both are at most 1.
+        double slopeU = -normal[uAxis] / normal[wAxis];
+        double slopeV = -normal[vAxis] / normal[wAxis];
 
-        Set<Location> particleLocations = new HashSet<>();
+        RingRowKernel kernel = RingRowKernels.get();
+        // Every row of columns has its own bit set, indexed by v. Rows are independent, so large circles mark
+        // slabs of rows in parallel; each slab only allocates and fills its own rows, so there is nothing to merge.
+        // The passes below only add columns, so once the marked rows exceed maxVoxels, the rest is not scanned.
+        BitSet[] columns = new BitSet[2 * scanRadius + 1];
+        AtomicLong marked = new AtomicLong();
+        ParallelVoxelizer.run(-scanRadius, scanRadius + 1, diameter, (from, to) -> {
+            for (int u = from; u < to && marked.get() <= maxVoxels; u++) {
+                BitSet row = new BitSet();
+                kernel.markRow(u, scanRadius, slopeU, slopeV, radius, thickness, row, 0);
+                columns[u + scanRadius] = row;
+                marked.addAndGet(row.cardinality());
+            }
+            return columns;
+        }, (lower, upper) -> lower);
+        if (marked.get() > maxVoxels) return marked.get();
 
-        // Draw the center marker particle
-        Location centerBlockLocation = new Location(world, Math.floor(centerX) + 0.5, Math.floor(centerY) + 0.5, Math.floor(centerZ) + 0.5);
-        world.spawnParticle(Particle.DUST, centerBlockLocation, 1, 0, 0, 0, 0, dustOptions);
+        // Where the projected ring is strongly curved, its band can still skip a single column between two kept ones.
+        for (int u = -scanRadius; u <= scanRadius; u++) {
+            for (int v = -scanRadius; v <= scanRadius; v++) {
+                if (!isColumnSet(columns, scanRadius, u, v)) continue;
+                if (isColumnSet(columns, scanRadius, u + 2, v) && !isColumnSet(columns, scanRadius, u + 1, v)
+                        && !isColumnSet(columns, scanRadius, u + 1, v - 1) && !isColumnSet(columns, scanRadius, u + 1, v + 1)) {
+                    setColumn(columns, scanRadius, u + 1, v);
+                }
+                if (isColumnSet(columns, scanRadius, u, v + 2) && !isColumnSet(columns, scanRadius, u, v + 1)
+                        && !isColumnSet(columns, scanRadius, u - 1, v + 1) && !isColumnSet(columns, scanRadius, u + 1, v + 1)) {
+                    setColumn(columns, scanRadius, u, v + 1);
+                }
+            }
+        }
 
-        for (int x = -scanRadius; x <= scanRadius; x++) {
-            for (int z = -scanRadius; z <= scanRadius; z++) {
-                if (isVoxelOnShell(x, z, radius, thickness)) {
-                    // Apply 3D rotation math
-                    double yAfterX = -z * sinX;
-                    double zAfterX = z * cosX;
-                    double finalX = x * cosZ - yAfterX * sinZ;
-                    double finalY = x * sinZ + yAfterX * cosZ;
-                    double finalZ = zAfterX;
-
-                    // Round to the nearest block to create the stair-step effect
-                    long voxelOffsetX = Math.round(finalX);
-                    long voxelOffsetY = Math.round(finalY);
-                    long voxelOffsetZ = Math.round(finalZ);
-
-                    Location particleLoc = new Location(
-                            world,
-                            Math.floor(this.centerX) + voxelOffsetX,
-                            Math.floor(this.centerY) + voxelOffsetY,
-                            Math.floor(this.centerZ) + voxelOffsetZ
-                    );
-                    particleLocations.add(particleLoc);
+        // A diagonal step between two columns can climb two blocks when both slopes point the same way, which would
+        // leave a gap in the ring. Such steps are closed with the column next to both, which is at most one block
+        // away from each of them.
+        for (int u = -scanRadius; u <= scanRadius; u++) {
+            for (int v = -scanRadius; v <= scanRadius; v++) {
+                if (!isColumnSet(columns, scanRadius, u, v)) continue;
+                int height = blockHeight(u, v, slopeU, slopeV);
+                for (int dv = -1; dv <= 1; dv += 2) {
+                    if (!isColumnSet(columns, scanRadius, u + 1, v + dv)) continue;
+                    if (isColumnSet(columns, scanRadius, u + 1, v) || isColumnSet(columns, scanRadius, u, v + dv)) continue;
+                    if (Math.abs(blockHeight(u + 1, v + dv, slopeU, slopeV) - height) < 2) continue;
+                    setColumn(columns, scanRadius, u + 1, v);
                 }
             }
         }
 
-        for (Location loc : particleLocations) {
-            world.spawnParticle(Particle.DUST, loc.clone().add(0.5, 0.5, 0.5), 1, 0, 0, 0, 0, dustOptions);
+        // The passes above only look at neighbouring columns, so the band can still break apart where the tilt and
+        // the block grid line up badly, most of all on small rings. Such rings are joined by walking along the middle
+        // of the ring and connecting every step through a column that shares an edge with both ends: columns sharing
+        // an edge are never more than one block apart in height. Circles in an axis plane are flat rings that never
+        // break, and keep the voxels of the span count.
+        boolean axisPlane = (normal[0] == 0 ? 1 : 0) + (normal[1] == 0 ? 1 : 0) + (normal[2] == 0 ? 1 : 0) == 2;
+        if (thickness < radius && !axisPlane && !isConnected(columns, scanRadius, slopeU, slopeV)) {
+            // On the smallest rings, the middle would pass through the center column, which holds the center marker
+            traceRing(columns, scanRadius, Math.max(MIN_TRACE_RADIUS, radius - thickness / 2.0), radX, radZ, uAxis, vAxis, slopeU, slopeV);
+        }
+
+        // The center marker particle; filled circles contain it anyway
+        setColumn(columns, scanRadius, 0, 0);
+
+        long count = 0;
+        for (BitSet row : columns) count += row.cardinality();
+        if (count > maxBuilt) return count;
+
+        int[] voxel = new int[3];
+        for (int u = -scanRadius; u <= scanRadius; u++) {
+            BitSet row = columns[u + scanRadius];
+            for (int index = row.nextSetBit(0); index >= 0; index = row.nextSetBit(index + 1)) {
+                int v = index - scanRadius;
+                voxel[uAxis] = u;
+                voxel[vAxis] = v;
+                voxel[wAxis] = blockHeight(u, v, slopeU, slopeV);
+                builder.add(voxel[0], voxel[1], voxel[2]);
+            }
         }
+        return count;
     }
 
     /**
-     * Calculates the total number of unique particles this circle will generate.
-     * @return The total particle count.
+     * Marks the columns along the circle of the given radius in the tilted plane, in steps of at most half a
+     * block, so consecutive steps land in the same or in neighbouring columns. Diagonal neighbours are joined
+     * through the shared edge neighbour that lies closer to the circle.
      */
-    public int getParticleCount() {
-        int count = 1; // Start with 1 for the center particle
-        double radius = this.diameter / 2.0;
-        int scanRadius = (int) Math.ceil(radius);
-
-        Set<Long> uniquePositions = new HashSet<>();
+    private static void traceRing(BitSet[] columns, int scanRadius, double ringRadius, double radX, double radZ,
+                                  int uAxis, int vAxis, double slopeU, double slopeV) {
+        // The X and Z axes of the flat circle, rotated like its normal, span the tilted plane
+        double[] axisA = {Math.cos(radZ), Math.sin(radZ), 0};
+        double[] axisB = {Math.sin(radX) * Math.sin(radZ), -Math.sin(radX) * Math.cos(radZ), Math.cos(radX)};
+        int steps = Math.max(8, (int) Math.ceil(4 * Math.PI * ringRadius));
+        int previousU = 0, previousV = 0;
+        for (int step = 0; step <= steps; step++) {
+            double angle = 2 * Math.PI * step / steps;
+            double cos = Math.cos(angle), sin = Math.sin(angle);
+            int u = (int) Math.round(ringRadius * (cos * axisA[uAxis] + sin * axisB[uAxis]));
+            int v = (int) Math.round(ringRadius * (cos * axisA[vAxis] + sin * axisB[vAxis]));
+            setColumn(columns, scanRadius, u, v);
+            if (step > 0 && u != previousU && v != previousV
+                    && !isColumnSet(columns, scanRadius, u, previousV) && !isColumnSet(columns, scanRadius, previousU, v)) {
+                double offsetA = Math.abs(planeDistance(u, previousV, slopeU, slopeV) - ringRadius);
+                double offsetB = Math.abs(planeDistance(previousU, v, slopeU, slopeV) - ringRadius);
+                if (offsetA <= offsetB) {
+                    setColumn(columns, scanRadius, u, previousV);
+                } else {
+                    setColumn(columns, scanRadius, previousU, v);
+                }
+            }
+            previousU = u;
+            previousV = v;
+        }
+    }
 
-        double radX = Math.toRadians(this.rotationX);
-        double radZ = Math.toRadians(this.rotationZ);
-        double cosX = Math.cos(radX), sinX = Math.sin(radX);
-        double cosZ = Math.cos(radZ), sinZ = Math.sin(radZ);
+    /**
+     * @return Whether the voxels of the marked columns form a single 26-connected piece. The center column
+     *         does not count, as it also holds the center marker, which is no part of the ring.
+     */
+    private static boolean isConnected(BitSet[] columns, int scanRadius, double slopeU, double slopeV) {
+        BitSet[] reached = new BitSet[columns.length];
+        long[] queue = null;
+        int count = 0, head = 0, tail = 0;
+        for (int u = -scanRadius; u <= scanRadius; u++) {
+            reached[u + scanRadius] = new BitSet();
+            count += columns[u + scanRadius].cardinality();
+        }
+        if (isColumnSet(columns, scanRadius, 0, 0)) {
+            count--;
+            reached[scanRadius].set(scanRadius);
+        }
+        if (count == 0) return true;
 
-        for (int x = -scanRadius; x <= scanRadius; x++) {
-            for (int z = -scanRadius; z <= scanRadius; z++) {
-                if (isVoxelOnShell(x, z, radius, thickness)) {
-                    double yAfterX = -z * sinX;
-                    double zAfterX = z * cosX;
-                    double finalX = x * cosZ - yAfterX * sinZ;
-                    double finalY = x * sinZ + yAfterX * cosZ;
-                    double finalZ = zAfterX;
-
-                    long voxelOffsetX = Math.round(finalX);
-                    long voxelOffsetY = Math.round(finalY);
-                    long voxelOffsetZ = Math.round(finalZ);
-
-                    // A simple way to encode a 3D position into a single long to count unique voxels
-                    uniquePositions.add((voxelOffsetX << 42) + (voxelOffsetY << 21) + voxelOffsetZ);
+        // The search starts at the first column other than the center. The queue holds every reached column
+        // once, so it never needs more room than there are columns.
+        for (int u = -scanRadius; u <= scanRadius && queue == null; u++) {
+            BitSet row = columns[u + scanRadius];
+            int index = row.nextSetBit(0);
+            if (u == 0 && index == scanRadius) index = row.nextSetBit(index + 1);
+            if (index < 0) continue;
+            queue = new long[count];
+            queue[tail++] = packColumn(u, index - scanRadius);
+            reached[u + scanRadius].set(index);
+        }
+        while (head < tail) {
+            long column = queue[head++];
+            int u = (int) (column >> 32);
+            int v = (int) column;
+            int height = blockHeight(u, v, slopeU, slopeV);
+            for (int du = -1; du <= 1; du++) {
+                for (int dv = -1; dv <= 1; dv++) {
+                    int neighbourU = u + du, neighbourV = v + dv;
+                    if (!isColumnSet(columns, scanRadius, neighbourU, neighbourV)) continue;
+                    BitSet reachedRow = reached[neighbourU + scanRadius];
+                    if (reachedRow.get(neighbourV + scanRadius)) continue;
+                    if (Math.abs(blockHeight(neighbourU, neighbourV, slopeU, slopeV) - height) > 1) continue;
+                    reachedRow.set(neighbourV + scanRadius);
+                    queue[tail++] = packColumn(neighbourU, neighbourV);
                 }
             }
         }
-        count += uniquePositions.size();
+        return tail == count;
+    }
+
+    private static long packColumn(int u, int v) {
+        return ((long) u << 32) | (v & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return The distance of the plane point above the column (u, v) from the center of the circle.
+     */
+    private static double planeDistance(int u, int v, double slopeU, double slopeV) {
+        double height = u * slopeU + v * slopeV;
+        return Math.sqrt(u * u + v * v + height * height);
+    }
+
+    private static void setColumn(BitSet[] columns, int scanRadius, int u, int v) {
+        columns[u + scanRadius].set(v + scanRadius);
+    }
+
+    private static boolean isColumnSet(BitSet[] columns, int scanRadius, int u, int v) {
+        if (Math.abs(u) > scanRadius || Math.abs(v) > scanRadius) return false;
+        return columns[u + scanRadius].get(v + scanRadius);
+    }
+
+    /**
+     * @return The block offset along the column axis at which the plane passes through the column (u, v).
+     */
+    private static int blockHeight(int u, int v, double slopeU, double slopeV) {
+        return (int) Math.floor(u * slopeU + v * slopeV + 0.5);
+    }
+
+    /**
+     * Removes the floating point residue of cos(90°), so right-angle rotations yield an exact axis.
+     */
+    private static double snap(double value) {
+        return Math.abs(value) < 1e-9 ? 0 : value;
+    }
+
+    /**
+     * Counts the particles a circle with the given parameters would generate. Untilted circles and
+     * circles rotated by multiples of 90 degrees lie in an axis plane, so their count follows from
+     * the row spans of the flat disk. Other tilts take the size of a cached template, or count the
+     * columns of the plane scan. The scan also yields the template, so unless the circle is very
+     * large, it is cached for the circle that is created next, which then does not scan again.
+     * The count itself is cached as well, so repeated checks of the same circle stay cheap.
+     * <p>
+     * A tilted circle whose projected ring area already holds more than maxParticles columns is
+     * rejected without scanning, and the scan stops once it has found more than maxParticles.
+     * @param maxParticles The most particles that would still fit into the budget.
+     * @return The total particle count, or a lower bound of it if that exceeds maxParticles.
+     */
+    public static long countParticles(double diameter, int thickness, double rotationX, double rotationZ, long maxParticles) {
+        checkDiameter(diameter);
+        if (!isRightAngle(rotationX) || !isRightAngle(rotationZ)) {
+            TemplateCache cache = TemplateCache.getInstance();
+            VoxelBuffer template = cache.getIfPresent(TemplateCache.Kind.CIRCLE, diameter, thickness, rotationX, rotationZ);
+            if (template != null) return template.size();
+            long lowerBound = minTiltedParticles(diameter, thickness, rotationX, rotationZ);
+            if (lowerBound > maxParticles) return lowerBound;
+            return cache.getCount(TemplateCache.Kind.CIRCLE, diameter, thickness, rotationX, rotationZ, maxParticles, maxCount -> {
+                VoxelBuffer.Builder builder = new VoxelBuffer.Builder();
+                long count = scanPlane(diameter, thickness, rotationX, rotationZ, builder, MAX_COUNTED_TEMPLATE_SIZE, maxCount);
+                if (count <= Math.min(maxCount, MAX_COUNTED_TEMPLATE_SIZE)) {
+                    cache.put(TemplateCache.Kind.CIRCLE, diameter, thickness, rotationX, rotationZ, builder.build());
+                }
+                return count;
+            });
+        }
+        double radius = diameter / 2.0;
+        int scanRadius = (int) Math.ceil(radius);
+        double radiusSquared = radius * radius;
+        boolean filled = thickness >= radius;
+        double innerRadius = radius - thickness;
+        double innerRadiusSquared = innerRadius * innerRadius;
+
+        long count = isVoxelOnShell(0, 0, radius, thickness) ? 0 : 1; // Center marker
+        for (int x = -scanRadius; x <= scanRadius; x++) {
+            int rowSquared = x * x;
+            if (rowSquared > radiusSquared) continue;
+            int top = VoxelSpans.outerExtent(rowSquared, radiusSquared);
+            int bottom = filled ? 0 : VoxelSpans.innerExtent(rowSquared, innerRadiusSquared);
+            count += VoxelSpans.mirroredLength(bottom, top);
+        }
         return count;
     }
 
+    /**
+     * Every column of the scan covers one unit of the plane projected onto the column axis, so a tilted ring keeps
+     * about as many columns as its area projected along the dominant normal axis, which shrinks it by at most
+     * a factor of the square root of three. Half of that area is a safe lower bound, even for the smallest rings.
+     * @return A lower bound of the particles of a tilted circle, computed without scanning.
+     */
+    private static long minTiltedParticles(double diameter, int thickness, double rotationX, double rotationZ) {
+        double radius = diameter / 2.0;
+        double innerRadius = Math.max(0, radius - thickness);
+        double radX = Math.toRadians(rotationX);
+        double radZ = Math.toRadians(rotationZ);
+        double dominantNormal = Math.max(Math.abs(Math.cos(radX) * Math.sin(radZ)),
+                Math.max(Math.abs(Math.cos(radX) * Math.cos(radZ)), Math.abs(Math.sin(radX))));
+        return (long) (Math.PI * (radius * radius - innerRadius * innerRadius) * dominantNormal / 2);
+    }
+
+    /**
+     * Rejects empty and negative circles, whose scan size would be meaningless.
+     */
+    private static void checkDiameter(double diameter) {
+        if (!(diameter > 0)) throw new IllegalArgumentException("The diameter must be positive: " + diameter);
+    }
+
+    private static boolean isRightAngle(double rotation) {
+        return rotation == 0 || Math.abs(rotation) == 90;
+    }
+
     /**
      * Checks if a 2D voxel offset lies on the shell of the flat circle.
      * @return True if the voxel is part of the shape, false otherwise.
      */
-    private boolean isVoxelOnShell(int x, int z, double radius, int thickness) {
+    private static boolean isVoxelOnShell(int x, int z, double radius, int thickness) {
         double distanceSquared = x * x + z * z;
         double radiusSquared = radius * radius;
         if (thickness >= radius) return distanceSquared <= radiusSquared; // Filled circle
@@ -141,7 +395,6 @@ public class ParticleCircle {
     }
 
     // --- Getters for the StorageManager ---
-    public World getWorld() { return world; }
     public double getCenterX() { return centerX; }
     public double getCenterY() { return centerY; }
     public double getCenterZ() { return centerZ; }
@@ -149,5 +402,4 @@ public class ParticleCircle {
     public int getThickness() { return thickness; }
     public double getRotationX() { return rotationX; }
     public double getRotationZ() { return rotationZ; }
-    public Color getColor() { return color; }
 }
\ No newline at end of file
@@ -2,29 +2,61 @@ package de.roundthing;
 
 import org.bukkit.Color;
 import org.bukkit.Location;
-import org.bukkit.Particle;
-import org.bukkit.World;
 
-import java.util.HashSet;
-import java.util.Set;
+public class ParticleLine extends ParticleShape {
 
-public class ParticleLine {
-
-    private final World world;
     private final Location start, end;
-    private final Particle.DustOptions dustOptions;
+    private final int endX, endY, endZ; // End block, relative to the start block
+    private final int particleCount;
 
     public ParticleLine(Location start, Location end, Color color) {
-        this.world = start.getWorld();
+        super(start.getWorld(), start.getBlockX(), start.getBlockY(), start.getBlockZ(), color);
         this.start = start;
         this.end = end;
-        this.dustOptions = new Particle.DustOptions(color, 1.5f);
+        this.endX = end.getBlockX() - start.getBlockX();
+        this.endY = end.getBlockY() - start.getBlockY();
+        this.endZ = end.getBlockZ() - start.getBlockZ();
+        this.particleCount = (int) countParticles(start, end);
+        setBounds(Math.min(0, endX), Math.min(0, endY), Math.min(0, endZ), Math.max(0, endX), Math.max(0, endY), Math.max(0, endZ));
+    }
+
+    /**
+     * Counts the particles a line between the given points would generate. A 3D Bresenham
+     * walk emits exactly one voxel per step along the dominant axis, plus the start voxel.
+     * @return The total particle count.
+     */
+    public static long countParticles(Location start, Location end) {
+        long dx = Math.abs((long) end.getBlockX() - start.getBlockX());
+        long dy = Math.abs((long) end.getBlockY() - start.getBlockY());
+        long dz = Math.abs((long) end.getBlockZ() - start.getBlockZ());
+        return Math.max(dx, Math.max(dy, dz)) + 1;
+    }
+
+    @Override
+    public int getParticleCount() {
+        return particleCount;
+    }
+
+    @Override
+    public int getTierParticleCount(int tier) {
+        // Every 2^tier-th step plus the end point
+        int stride = 1 << tier;
+        return particleCount == 1 ? 1 : (particleCount - 1 + stride - 1) / stride + 1;
     }
 
-    private Set<Location> calculateVoxelPositions() {
-        Set<Location> locations = new HashSet<>();
-        int x1 = start.getBlockX(), y1 = start.getBlockY(), z1 = start.getBlockZ();
-        int x2 = end.getBlockX(), y2 = end.getBlockY(), z2 = end.getBlockZ();
+    /**
+     * Walks the line with a 3D Bresenham algorithm and streams the voxels, relative to the
+     * start block, into the visitor. Every step advances the dominant axis, so no voxel is
+     * visited twice and nothing has to be stored or deduplicated. Coarser detail tiers only
+     * visit every 2^tier-th step, but always include both end points.
+     */
+    @Override
+    public void forEachVoxel(VoxelVisitor visitor, int tier, int from, int to) {
+        int strideMask = (1 << tier) - 1;
+        int step = 0;
+        int index = 0; // The index of the next voxel of this tier
+        int x1 = 0, y1 = 0, z1 = 0;
+        int x2 = endX, y2 = endY, z2 = endZ;
 
         int dx = Math.abs(x2 - x1);
         int dy = Math.abs(y2 - y1);
@@ -38,7 +70,10 @@ public class ParticleLine {
             int err1 = 2 * dy - dx;
             int err2 = 2 * dz - dx;
             while (x1 != x2) {
-                locations.add(new Location(world, x1, y1, z1));
+                if ((step++ & strideMask) == 0) {
+                    if (index >= to) return;
+                    if (index++ >= from) visitor.visit(x1, y1, z1);
+                }
                 if (err1 > 0) { y1 += sy; err1 -= 2 * dx; }
                 if (err2 > 0) { z1 += sz; err2 -= 2 * dx; }
                 err1 += 2 * dy;
@@ -49,7 +84,10 @@ public class ParticleLine {
             int err1 = 2 * dx - dy;
             int err2 = 2 * dz - dy;
             while (y1 != y2) {
-                locations.add(new Location(world, x1, y1, z1));
+                if ((step++ & strideMask) == 0) {
+                    if (index >= to) return;
+                    if (index++ >= from) visitor.visit(x1, y1, z1);
+                }
                 if (err1 > 0) { x1 += sx; err1 -= 2 * dy; }
                 if (err2 > 0) { z1 += sz; err2 -= 2 * dy; }
                 err1 += 2 * dx;
@@ -60,7 +98,10 @@ public class ParticleLine {
             int err1 = 2 * dx - dz;
             int err2 = 2 * dy - dz;
             while (z1 != z2) {
-                locations.add(new Location(world, x1, y1, z1));
+                if ((step++ & strideMask) == 0) {
+                    if (index >= to) return;
+                    if (index++ >= from) visitor.visit(x1, y1, z1);
+                }
                 if (err1 > 0) { x1 += sx; err1 -= 2 * dz; }
                 if (err2 > 0) { y1 += sy; err2 -= 2 * dz; }
                 err1 += 2 * dx;
@@ -68,24 +109,10 @@ public class ParticleLine {
                 z1 += sz;
             }
         }
-        locations.add(new Location(world, x2, y2, z2)); // Füge den Endpunkt hinzu
-        return locations;
-    }
-
-    public void draw() {
-        Set<Location> locations = calculateVoxelPositions();
-        for (Location loc : locations) {
-            world.spawnParticle(Particle.DUST, loc.clone().add(0.5, 0.5, 0.5), 1, 0, 0, 0, 0, dustOptions);
-        }
-    }
-
-    public int getParticleCount() {
-        return calculateVoxelPositions().size();
+        if (index >= from && index < to) visitor.visit(x2, y2, z2); // Füge den Endpunkt hinzu
     }
 
     // Getter für den StorageManager
     public Location getStart() { return start; }
     public Location getEnd() { return end; }
-    public World getWorld() { return world; }
-    public Color getColor() { return dustOptions.getColor(); }
 }
\ No newline at end of file
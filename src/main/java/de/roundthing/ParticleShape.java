@@ -0,0 +1,168 @@
+/**
+ * The common base class of all particle shapes. A shape is fixed once it is constructed:
+ * it holds its origin block and exposes its voxels as offsets from that origin through
+ * {@link #forEachVoxel(VoxelVisitor)}. Circles and spheres keep a rasterized voxel buffer,
+ * which may be a template shared with other shapes of the same size, while lines walk their
+ * voxels on the fly. Rendering and budget checks therefore never have to repeat a voxel scan.
+ *
+ * @author Silas Hörz
+ * @version 1.0
+ */
+package de.roundthing;
+
+import org.bukkit.Color;
+import org.bukkit.Particle;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+import java.util.List;
+
+public abstract class ParticleShape {
+
+    private static final int MIN_TIER_PARTICLES = 64; // Coarser tiers must keep enough voxels for the shape to stay recognizable
+    // The visitor that spawns the particles, reused for every draw call on the same thread
+    private static final ThreadLocal<Emitter> EMITTER = ThreadLocal.withInitial(Emitter::new);
+
+    private final World world;
+    private final int originX, originY, originZ;
+    private final Particle.DustOptions dustOptions;
+    // The block bounding box of all voxels, in world coordinates
+    private int minX, minY, minZ, maxX, maxY, maxZ;
+
+    protected ParticleShape(World world, int originX, int originY, int originZ, Color color) {
+        this.world = world;
+        this.originX = originX;
+        this.originY = originY;
+        this.originZ = originZ;
+        this.dustOptions = new Particle.DustOptions(color, 1.5f);
+        setBounds(0, 0, 0, 0, 0, 0);
+    }
+
+    /**
+     * Sets the bounding box of the shape from the smallest and largest voxel offsets.
+     * Subclasses call this once their voxels are known.
+     */
+    protected void setBounds(int minOffsetX, int minOffsetY, int minOffsetZ, int maxOffsetX, int maxOffsetY, int maxOffsetZ) {
+        this.minX = originX + minOffsetX;
+        this.minY = originY + minOffsetY;
+        this.minZ = originZ + minOffsetZ;
+        this.maxX = originX + maxOffsetX;
+        this.maxY = originY + maxOffsetY;
+        this.maxZ = originZ + maxOffsetZ;
+    }
+
+    /**
+     * Draws part of the shape by spawning one particle in the center of the voxels [from, to)
+     * of the given detail tier. The particles are only sent to the given players.
+     */
+    public void draw(List<Player> viewers, int tier, int from, int to) {
+        Emitter emitter = EMITTER.get();
+        emitter.begin(this, viewers);
+        try {
+            forEachVoxel(emitter, tier, from, to);
+        } finally {
+            emitter.end();
+        }
+    }
+
+    /**
+     * Picks the detail tier for a viewer. Up to the LOD distance the shape is drawn in full. The range
+     * from there to the render distance is split into one band per remaining tier, each reaching the same
+     * factor further than the one before, and every band halves the drawn voxels again, as long as enough
+     * of them remain. So every tier is used, whatever the two distances are.
+     * @param distanceSquared The squared distance of the viewer to the bounding box.
+     * @param lodDistance The distance up to which the shape is drawn in full, or 0 to always draw it in full.
+     * @param renderDistance The distance up to which the shape is drawn at all.
+     * @return The detail tier, from 0 (every voxel) to VoxelBuffer.DETAIL_TIERS - 1.
+     */
+    public int selectDetailTier(double distanceSquared, double lodDistance, double renderDistance) {
+        if (lodDistance <= 0 || renderDistance <= lodDistance || distanceSquared < lodDistance * lodDistance) return 0;
+        // How far the viewer is into the range between both distances, on a logarithmic scale from 0 to 1
+        double progress = Math.log(distanceSquared / (lodDistance * lodDistance)) / (2 * Math.log(renderDistance / lodDistance));
+        int tier = Math.min(VoxelBuffer.DETAIL_TIERS - 1, 1 + (int) (progress * (VoxelBuffer.DETAIL_TIERS - 1)));
+        while (tier > 0 && getTierParticleCount(tier) < MIN_TIER_PARTICLES) tier--;
+        return tier;
+    }
+
+    /**
+     * @return The squared distance from the point to the nearest voxel center in the bounding box, or 0 if the point lies inside it.
+     */
+    public double distanceSquared(double x, double y, double z) {
+        double dx = Math.max(0, Math.max(minX + 0.5 - x, x - (maxX + 0.5)));
+        double dy = Math.max(0, Math.max(minY + 0.5 - y, y - (maxY + 0.5)));
+        double dz = Math.max(0, Math.max(minZ + 0.5 - z, z - (maxZ + 0.5)));
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /**
+     * Passes every voxel of the shape to the visitor, as offsets relative to the origin block.
+     * Each voxel is visited exactly once.
+     */
+    public void forEachVoxel(VoxelVisitor visitor) {
+        forEachVoxel(visitor, 0, 0, getParticleCount());
+    }
+
+    /**
+     * Passes the voxels [from, to) of the given detail tier to the visitor, in a fixed order, so
+     * consecutive ranges can draw the shape in slices. Each tier is a stable subset of the one
+     * below it, so a viewer moving away from the shape sees it thin out without flickering.
+     */
+    public abstract void forEachVoxel(VoxelVisitor visitor, int tier, int from, int to);
+
+    /**
+     * @return The total number of unique particles this shape generates.
+     */
+    public abstract int getParticleCount();
+
+    /**
+     * @return The number of particles drawn at the given detail tier.
+     */
+    public abstract int getTierParticleCount(int tier);
+
+    public World getWorld() { return world; }
+    public int getOriginX() { return originX; }
+    public int getOriginY() { return originY; }
+    public int getOriginZ() { return originZ; }
+    public Color getColor() { return dustOptions.getColor(); }
+    public int getMinX() { return minX; }
+    public int getMinY() { return minY; }
+    public int getMinZ() { return minZ; }
+    public int getMaxX() { return maxX; }
+    public int getMaxY() { return maxY; }
+    public int getMaxZ() { return maxZ; }
+
+    /**
+     * Spawns one particle per visited voxel. The target of the current draw call is kept in fields
+     * instead of being captured by a lambda, so drawing does not allocate any objects.
+     */
+    private static final class Emitter implements VoxelVisitor {
+        private World world;
+        private List<Player> viewers;
+        private Particle.DustOptions dustOptions;
+        private double baseX, baseY, baseZ;
+
+        private void begin(ParticleShape shape, List<Player> viewers) {
+            this.world = shape.world;
+            this.viewers = viewers;
+            this.dustOptions = shape.dustOptions;
+            this.baseX = shape.originX + 0.5;
+            this.baseY = shape.originY + 0.5;
+            this.baseZ = shape.originZ + 0.5;
+        }
+
+        /**
+         * Drops the references of the finished draw call, so the emitter does not keep worlds or players alive.
+         */
+        private void end() {
+            this.world = null;
+            this.viewers = null;
+            this.dustOptions = null;
+        }
+
+        @Override
+        public void visit(int x, int y, int z) {
+            // Forced, so viewers beyond the vanilla particle range of 32 blocks still see the shape
+            world.spawnParticle(Particle.DUST, viewers, null, baseX + x, baseY + y, baseZ + z, 1, 0, 0, 0, 0, dustOptions, true);
+        }
+    }
+}
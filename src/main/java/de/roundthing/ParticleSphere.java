@@ -1,7 +1,7 @@
 /**
  * Represents a single particle sphere. This class holds all properties of a sphere,
- * such as its position and size, and contains the logic for rendering it
- * and calculating its particle count.
+ * such as its position and size, and contains the logic for rasterizing it
+ * into the voxels that are rendered.
  *
  * @author Silas Hörz
  * @version 1.0
@@ -10,89 +10,213 @@ package de.roundthing;
 
 import org.bukkit.Color;
 import org.bukkit.Location;
-import org.bukkit.Particle;
-import org.bukkit.World;
 
-import java.util.HashSet;
-import java.util.Set;
+public class ParticleSphere extends ParticleShape {
 
-public class ParticleSphere {
+    // Whether new spheres only keep the voxels that can be seen from outside
+    private static volatile boolean visibleSurfaceOnly = false;
 
-    private final World world;
     private final double centerX, centerY, centerZ;
     private final double diameter;
     private final int thickness;
-    private final Particle.DustOptions dustOptions;
+    private final VoxelBuffer voxels;
 
     public ParticleSphere(Location center, double diameter, int thickness, Color color) {
-        this.world = center.getWorld();
+        super(center.getWorld(), center.getBlockX(), center.getBlockY(), center.getBlockZ(), color);
+        boolean surfaceOnly = visibleSurfaceOnly;
+        this.voxels = TemplateCache.getInstance().get(surfaceOnly ? TemplateCache.Kind.SPHERE_SURFACE : TemplateCache.Kind.SPHERE,
+                diameter, thickness, 0, 0, () -> rasterize(diameter, thickness, surfaceOnly));
+        setBounds(voxels.getMinX(), voxels.getMinY(), voxels.getMinZ(), voxels.getMaxX(), voxels.getMaxY(), voxels.getMaxZ());
         this.centerX = center.getX();
         this.centerY = center.getY();
         this.centerZ = center.getZ();
         this.diameter = diameter;
         this.thickness = thickness;
-        this.dustOptions = new Particle.DustOptions(color, 1.5f);
     }
 
     /**
-     * Draws the sphere in the world by spawning particles.
+     * Sets whether spheres created from now on only keep the voxels with at least one empty neighbour.
+     * Voxels inside filled and thick spheres are hidden behind the outer ones, so dropping them does not
+     * change what players see, but they are no longer drawn or charged to the budget.
      */
-    public void draw() {
-        double radius = this.diameter / 2.0;
+    public static void setVisibleSurfaceOnly(boolean surfaceOnly) {
+        visibleSurfaceOnly = surfaceOnly;
+    }
+
+    @Override
+    public void forEachVoxel(VoxelVisitor visitor, int tier, int from, int to) {
+        // Every tier is a prefix of the template, so the range applies to it directly
+        voxels.forEach(visitor, from, Math.min(to, voxels.getTierSize(tier)));
+    }
+
+    @Override
+    public int getParticleCount() {
+        return voxels.size();
+    }
+
+    @Override
+    public int getTierParticleCount(int tier) {
+        return voxels.getTierSize(tier);
+    }
+
+    /**
+     * Rasterizes the sphere into block offsets relative to its center block.
+     * Only one quadrant of (x, z) columns is evaluated. For each column the vertical span
+     * between the inner and outer radius is computed directly and mirrored into the other
+     * quadrants and the lower half, so the cost grows with the number of output voxels
+     * instead of the volume of the bounding cube. The center marker is always part of the result.
+     * Large spheres are split into slabs of x and rasterized in parallel.
+     * @param surfaceOnly Whether to leave out the voxels whose six neighbours all belong to the sphere.
+     * @return The voxel offsets of the sphere.
+     */
+    private static VoxelBuffer rasterize(double diameter, int thickness, boolean surfaceOnly) {
+        double radius = diameter / 2.0;
         int scanRadius = (int) Math.ceil(radius);
-        Set<Location> particleLocations = new HashSet<>();
-
-        Location centerBlockLocation = new Location(world, Math.floor(centerX) + 0.5, Math.floor(centerY) + 0.5, Math.floor(centerZ) + 0.5);
-        world.spawnParticle(Particle.DUST, centerBlockLocation, 1, 0, 0, 0, 0, dustOptions);
-
-        // Scan a 3D cube surrounding the sphere's center
-        for (int x = -scanRadius; x <= scanRadius; x++) {
-            for (int y = -scanRadius; y <= scanRadius; y++) {
-                for (int z = -scanRadius; z <= scanRadius; z++) {
-                    if (isVoxelOnShell(x, y, z, radius, thickness)) {
-                        Location particleLoc = new Location(
-                                world,
-                                Math.floor(this.centerX) + x,
-                                Math.floor(this.centerY) + y,
-                                Math.floor(this.centerZ) + z
-                        );
-                        particleLocations.add(particleLoc);
-                    }
-                }
-            }
+        VoxelBuffer.Builder builder = new VoxelBuffer.Builder();
+
+        // The center marker particle, unless the sphere is filled and contains it anyway
+        if (hasCenterMarker(radius, thickness, surfaceOnly)) {
+            builder.add(0, 0, 0);
         }
 
-        for (Location loc : particleLocations) {
-            world.spawnParticle(Particle.DUST, loc.clone().add(0.5, 0.5, 0.5), 1, 0, 0, 0, 0, dustOptions);
+        builder.addAll(ParallelVoxelizer.run(0, scanRadius + 1, diameter,
+                (from, to) -> rasterizeSlab(from, to, radius, thickness, surfaceOnly),
+                VoxelBuffer.Builder::addAll));
+        return builder.build();
+    }
+
+    /**
+     * Rasterizes the columns of the sphere whose x offset lies in [fromX, toX).
+     * @return A builder holding the voxels of the slab.
+     */
+    private static VoxelBuffer.Builder rasterizeSlab(int fromX, int toX, double radius, int thickness, boolean surfaceOnly) {
+        int scanRadius = (int) Math.ceil(radius);
+        double radiusSquared = radius * radius;
+        boolean filled = thickness >= radius;
+        double innerRadius = radius - thickness;
+        double innerRadiusSquared = innerRadius * innerRadius;
+        VoxelBuffer.Builder builder = new VoxelBuffer.Builder();
+        int[] hidden = {1, 0}; // Empty unless only the surface is kept
+
+        for (int x = fromX; x < toX; x++) {
+            for (int z = 0; z <= scanRadius; z++) {
+                int columnSquared = x * x + z * z;
+                if (columnSquared > radiusSquared) break; // All further columns in this row are outside as well
+
+                int top = VoxelSpans.outerExtent(columnSquared, radiusSquared);
+                int bottom = filled ? 0 : VoxelSpans.innerExtent(columnSquared, innerRadiusSquared);
+                if (bottom > top) continue;
+                if (surfaceOnly) hiddenSpan(x, z, bottom, top, radiusSquared, innerRadiusSquared, filled, hidden);
+
+                if (hidden[0] > hidden[1]) {
+                    addColumns(builder, x, z, bottom, top);
+                } else {
+                    // The hidden voxels split the column into the part below and the part above them
+                    addColumns(builder, x, z, bottom, hidden[0] - 1);
+                    addColumns(builder, x, z, hidden[1] + 1, top);
+                }
+            }
         }
+        return builder;
     }
 
     /**
-     * Calculates the total number of unique particles this sphere will generate.
+     * Counts the particles a sphere with the given parameters would generate, using the same
+     * column spans as the rasterizer but without storing any voxels. This allows the budget
+     * check to reject oversized spheres before they are rasterized. Like the constructor, it leaves
+     * out the hidden voxels if only the visible surface is kept.
      * @return The total particle count.
      */
-    public int getParticleCount() {
-        int count = 1; // Start with 1 for the center particle
-        double radius = this.diameter / 2.0;
+    public static long countParticles(double diameter, int thickness) {
+        boolean surfaceOnly = visibleSurfaceOnly;
+        double radius = diameter / 2.0;
         int scanRadius = (int) Math.ceil(radius);
+        double radiusSquared = radius * radius;
+        boolean filled = thickness >= radius;
+        double innerRadius = radius - thickness;
+        double innerRadiusSquared = innerRadius * innerRadius;
 
-        for (int x = -scanRadius; x <= scanRadius; x++) {
-            for (int y = -scanRadius; y <= scanRadius; y++) {
-                for (int z = -scanRadius; z <= scanRadius; z++) {
-                    if (isVoxelOnShell(x, y, z, radius, thickness)) {
-                        count++;
-                    }
-                }
+        long count = hasCenterMarker(radius, thickness, surfaceOnly) ? 1 : 0;
+        int[] hidden = {1, 0};
+        for (int x = 0; x <= scanRadius; x++) {
+            for (int z = 0; z <= scanRadius; z++) {
+                int columnSquared = x * x + z * z;
+                if (columnSquared > radiusSquared) break;
+
+                int top = VoxelSpans.outerExtent(columnSquared, radiusSquared);
+                int bottom = filled ? 0 : VoxelSpans.innerExtent(columnSquared, innerRadiusSquared);
+                if (bottom > top) continue;
+                if (surfaceOnly) hiddenSpan(x, z, bottom, top, radiusSquared, innerRadiusSquared, filled, hidden);
+                int mirrors = (x != 0 ? 2 : 1) * (z != 0 ? 2 : 1);
+                count += mirrors * (VoxelSpans.mirroredLength(bottom, top) - VoxelSpans.mirroredLength(hidden[0], hidden[1]));
             }
         }
         return count;
     }
 
+    /**
+     * Finds the voxels of a column that cannot be seen from outside, because all six of their neighbours
+     * belong to the sphere. Above and below, that holds for every voxel strictly between the ends of the
+     * column; at y = 0 a column reaching both halves continues on both sides. To the sides, the absolute
+     * y offset must also lie in the spans of all four neighbouring columns, and the intersection of spans
+     * is again a span. The columns are symmetric, so the result applies to all mirrored copies.
+     * @param hidden Receives the lowest and highest absolute y offset of the hidden voxels. The span is empty if the first exceeds the second.
+     */
+    private static void hiddenSpan(int x, int z, int bottom, int top, double radiusSquared, double innerRadiusSquared, boolean filled, int[] hidden) {
+        int from = bottom == 0 ? 0 : bottom + 1;
+        int to = top - 1;
+        for (int side = 0; side < 4 && from <= to; side++) {
+            int neighbourX = x + (side == 0 ? 1 : side == 1 ? -1 : 0);
+            int neighbourZ = z + (side == 2 ? 1 : side == 3 ? -1 : 0);
+            int neighbourSquared = neighbourX * neighbourX + neighbourZ * neighbourZ;
+            if (neighbourSquared > radiusSquared) {
+                to = from - 1; // The neighbouring column is empty, so every voxel of this one borders the outside
+                break;
+            }
+            from = Math.max(from, filled ? 0 : VoxelSpans.innerExtent(neighbourSquared, innerRadiusSquared));
+            to = Math.min(to, VoxelSpans.outerExtent(neighbourSquared, radiusSquared));
+        }
+        hidden[0] = from;
+        hidden[1] = to;
+    }
+
+    /**
+     * Adds the voxels of a column and of its copies mirrored into the other quadrants.
+     */
+    private static void addColumns(VoxelBuffer.Builder builder, int x, int z, int bottom, int top) {
+        if (bottom > top) return;
+        addColumn(builder, x, z, bottom, top);
+        if (x != 0) addColumn(builder, -x, z, bottom, top);
+        if (z != 0) addColumn(builder, x, -z, bottom, top);
+        if (x != 0 && z != 0) addColumn(builder, -x, -z, bottom, top);
+    }
+
+    /**
+     * Adds the voxels of a column whose absolute y offsets lie between bottom and top (inclusive),
+     * mirrored into the upper and lower half of the sphere.
+     */
+    private static void addColumn(VoxelBuffer.Builder builder, int x, int z, int bottom, int top) {
+        for (int y = bottom; y <= top; y++) {
+            builder.add(x, y, z);
+            if (y != 0) builder.add(x, -y, z);
+        }
+    }
+
+    /**
+     * The center marker is added unless the sphere contains the center anyway. With only the visible surface,
+     * it is also left out if the shell encloses it on all six sides. It never hides the voxels around it.
+     * @return True if the sphere gets a center marker.
+     */
+    private static boolean hasCenterMarker(double radius, int thickness, boolean surfaceOnly) {
+        if (isVoxelOnShell(0, 0, 0, radius, thickness)) return false;
+        return !surfaceOnly || !isVoxelOnShell(1, 0, 0, radius, thickness) || !isVoxelOnShell(0, 1, 0, radius, thickness);
+    }
+
     /**
      * Checks if a 3D voxel offset lies on the shell of the sphere.
      * @return True if the voxel is part of the shape, false otherwise.
      */
-    private boolean isVoxelOnShell(int x, int y, int z, double radius, int thickness) {
+    private static boolean isVoxelOnShell(int x, int y, int z, double radius, int thickness) {
         // 3D distance calculation using squared values for performance
         double distanceSquared = x * x + y * y + z * z;
         double radiusSquared = radius * radius;
@@ -107,11 +231,9 @@ public class ParticleSphere {
     }
 
     // --- Getters for the StorageManager ---
-    public World getWorld() { return world; }
     public double getCenterX() { return centerX; }
     public double getCenterY() { return centerY; }
     public double getCenterZ() { return centerZ; }
     public double getDiameter() { return diameter; }
     public int getThickness() { return thickness; }
-    public Color getColor() { return dustOptions.getColor(); }
 }
\ No newline at end of file
@@ -0,0 +1,97 @@
+/**
+ * An immutable snapshot of everything the render task draws in a refresh cycle. For every owner
+ * it lists the shapes seen by at least one player, each with a detail tier and the players that
+ * see the shape at that tier. Frames are built by the {@link RenderFrameProducer} on the server
+ * thread and replayed by the {@link ShapeRenderer} on its own thread, so rendering never reads
+ * the shape maps or player positions while they change. The voxels themselves are not copied:
+ * shapes are immutable, so a frame only refers to them.
+ *
+ * @author Silas Hörz
+ * @version 1.0
+ */
+package de.roundthing;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+import java.util.Collections;
+import java.util.List;
+
+public final class RenderFrame {
+
+    public static final RenderFrame EMPTY = new RenderFrame(-1, new Player[0], new World[0], new int[0], Collections.emptyList());
+
+    private final long indexVersion;
+    // The players the frame was built for and their block positions as x/y/z triples
+    private final Player[] players;
+    private final World[] worlds;
+    private final int[] positions;
+    private final List<List<Job>> jobsByOwner;
+
+    /**
+     * One shape drawn at one detail tier for the players that see it at that tier.
+     */
+    public static final class Job {
+        private final ParticleShape shape;
+        private final int tier;
+        private final List<Player> viewers;
+        private final int stagger;
+
+        /**
+         * @param stagger A hash that is stable for the shape. It decides at which tick the shape's refresh cycle starts.
+         */
+        public Job(ParticleShape shape, int tier, List<Player> viewers, int stagger) {
+            this.shape = shape;
+            this.tier = tier;
+            this.viewers = Collections.unmodifiableList(viewers);
+            this.stagger = stagger;
+        }
+
+        public ParticleShape getShape() { return shape; }
+        public int getTier() { return tier; }
+        public List<Player> getViewers() { return viewers; }
+        public int getStagger() { return stagger; }
+    }
+
+    /**
+     * @param indexVersion The version of the shape index the frame was built from.
+     * @param jobsByOwner The jobs of every owner that has at least one visible shape. The lists must not be changed afterwards.
+     */
+    public RenderFrame(long indexVersion, Player[] players, World[] worlds, int[] positions, List<List<Job>> jobsByOwner) {
+        this.indexVersion = indexVersion;
+        this.players = players;
+        this.worlds = worlds;
+        this.positions = positions;
+        this.jobsByOwner = Collections.unmodifiableList(jobsByOwner);
+    }
+
+    public List<List<Job>> getJobsByOwner() {
+        return jobsByOwner;
+    }
+
+    /**
+     * @return A frame for the same players with other jobs, like the part of this frame left to another backend.
+     */
+    public RenderFrame withJobs(List<List<Job>> jobsByOwner) {
+        return new RenderFrame(indexVersion, players, worlds, positions, jobsByOwner);
+    }
+
+    /**
+     * Checks whether the frame still shows what it would if it were built now: the shapes are unchanged
+     * and the same players are online, in the same worlds and on the same blocks.
+     * @param locations The current location of each player, at the same index.
+     */
+    public boolean isCurrent(long indexVersion, List<Player> players, List<Location> locations) {
+        if (indexVersion != this.indexVersion || players.size() != this.players.length) return false;
+        for (int i = 0; i < this.players.length; i++) {
+            Location location = locations.get(i);
+            if (players.get(i) != this.players[i]
+                    || location.getWorld() != worlds[i]
+                    || location.getBlockX() != positions[i * 3]
+                    || location.getBlockY() != positions[i * 3 + 1]
+                    || location.getBlockZ() != positions[i * 3 + 2]) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,221 @@
+/**
+ * The first stage of rendering. It runs every tick on the server thread, where it updates the
+ * {@link RenderThrottle}, and once per refresh cycle checks whether the current render frame is
+ * out of date: a shape was created, deleted, loaded or unloaded, or a player joined, left or
+ * moved to another block. Only then does it build a new immutable {@link RenderFrame} and hand it
+ * to the configured backend: the {@link ShapeRenderer} for particles or the {@link DisplayRenderer}
+ * for display entities. The shapes near each player and their detail tiers are kept from frame to
+ * frame, so a new frame only looks up the players who moved to another block in the spatial index,
+ * unless the shapes or the distances have changed.
+ * <p>
+ * On Folia the producer runs on the global region thread, which must not read entities owned by
+ * a region. There every player's location is recorded by a task on the player's own scheduler,
+ * and the producer only reads these records.
+ *
+ * @author Silas Hörz
+ * @version 1.0
+ */
+package de.roundthing;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class RenderFrameProducer implements Runnable {
+
+    private final RoundThing plugin;
+    private final ShapeRenderer renderer;
+    private final DisplayRenderer displayRenderer;
+    private RenderFrame frame = RenderFrame.EMPTY; // The latest frame, whichever backend it went to
+    private boolean usingDisplays = false;
+    private int ticksUntilCheck = 0;
+    // Folia only: the latest location of every player, recorded on the player's own scheduler
+    private final Map<Player, Location> trackedLocations = new ConcurrentHashMap<>();
+    // The shapes every player of the latest frame sees, reused for the players who have not moved since
+    private Map<Player, PlayerView> views = new IdentityHashMap<>();
+
+    public RenderFrameProducer(RoundThing plugin, ShapeRenderer renderer, DisplayRenderer displayRenderer) {
+        this.plugin = plugin;
+        this.renderer = renderer;
+        this.displayRenderer = displayRenderer;
+    }
+
+    /**
+     * Starts recording the player's location on Folia, every tick on the player's own scheduler. The
+     * record is dropped once the player leaves. Elsewhere the producer reads locations directly.
+     */
+    public void trackPlayer(Player player) {
+        if (!plugin.isFoliaServer()) return;
+        player.getScheduler().runAtFixedRate(plugin, task -> trackedLocations.put(player, player.getLocation()),
+                () -> trackedLocations.remove(player), 1L, 1L);
+    }
+
+    @Override
+    public void run() {
+        RenderThrottle throttle = plugin.getRenderThrottle();
+        throttle.tick();
+
+        // The renderer only takes a new frame at the start of a cycle, so checking more often would be wasted
+        if (--ticksUntilCheck > 0) return;
+        ticksUntilCheck = throttle.getRefreshTicks();
+
+        // A reload switched the backend: the old one is emptied and the new one gets a fresh frame
+        if (plugin.isDisplayBackend() != usingDisplays) {
+            usingDisplays = plugin.isDisplayBackend();
+            if (usingDisplays) {
+                renderer.publish(RenderFrame.EMPTY);
+            } else {
+                displayRenderer.clear(false);
+            }
+            frame = RenderFrame.EMPTY;
+        }
+
+        // The version is read before the lookups, so changes made during them make the next check fail
+        long indexVersion = plugin.getShapeIndex().getVersion();
+        Collection<? extends Player> onlinePlayers = Bukkit.getOnlinePlayers();
+        List<Player> players = new ArrayList<>(onlinePlayers.size());
+        List<Location> locations = new ArrayList<>(onlinePlayers.size());
+        for (Player player : onlinePlayers) {
+            Location location = plugin.isFoliaServer() ? trackedLocations.get(player) : player.getLocation();
+            if (location == null) continue; // Not recorded yet; the next check picks the player up
+            players.add(player);
+            locations.add(location);
+        }
+        // Displays removed by the server, or whose runs became ready, are spawned even if the frame is unchanged
+        if (frame.isCurrent(indexVersion, players, locations) && !(usingDisplays && displayRenderer.hasChanged())) return;
+        frame = buildFrame(indexVersion, players, locations);
+        if (usingDisplays) {
+            // The shapes beyond the display limit are left to the particles
+            renderer.publish(frame.withJobs(displayRenderer.sync(frame)));
+        } else {
+            renderer.publish(frame);
+        }
+    }
+
+    private RenderFrame buildFrame(long indexVersion, List<Player> players, List<Location> locations) {
+        ShapeIndex shapeIndex = plugin.getShapeIndex();
+        double renderDistance = plugin.getRenderDistance();
+        double lodDistance = plugin.getLodDistance();
+
+        World[] worlds = new World[players.size()];
+        int[] positions = new int[players.size() * 3];
+        Map<ParticleShape, TieredViewers> viewersByShape = new LinkedHashMap<>();
+        Map<Player, PlayerView> nextViews = new IdentityHashMap<>(players.size());
+        for (int i = 0; i < players.size(); i++) {
+            Player player = players.get(i);
+            Location location = locations.get(i);
+            worlds[i] = location.getWorld();
+            positions[i * 3] = location.getBlockX();
+            positions[i * 3 + 1] = location.getBlockY();
+            positions[i * 3 + 2] = location.getBlockZ();
+
+            PlayerView view = views.get(player);
+            if (view == null || !view.isCurrent(indexVersion, location, renderDistance, lodDistance)) {
+                view = new PlayerView(indexVersion, location, renderDistance, lodDistance);
+                double x = location.getX(), y = location.getY(), z = location.getZ();
+                List<SeenShape> seen = view.seen;
+                shapeIndex.forEachNear(location.getWorld(), x, y, z, renderDistance, entry -> {
+                    ParticleShape shape = entry.getRenderShape();
+                    if (shape.getParticleCount() == 0) return; // Merged shapes can be covered completely by others
+                    seen.add(new SeenShape(entry, shape, shape.selectDetailTier(shape.distanceSquared(x, y, z), lodDistance, renderDistance)));
+                });
+            }
+            nextViews.put(player, view);
+            for (SeenShape seen : view.seen) {
+                viewersByShape.computeIfAbsent(seen.shape, key -> new TieredViewers(seen.entry.getOwner(), seen.entry.getName())).add(seen.tier, player);
+            }
+        }
+        views = nextViews; // Players who left are dropped
+
+        List<List<RenderFrame.Job>> jobsByOwner = new ArrayList<>();
+        Map<UUID, List<RenderFrame.Job>> ownerJobs = new HashMap<>();
+        viewersByShape.forEach((shape, viewers) -> {
+            for (int tier = 0; tier < VoxelBuffer.DETAIL_TIERS; tier++) {
+                List<Player> tierViewers = viewers.byTier[tier];
+                if (tierViewers == null) continue;
+                ownerJobs.computeIfAbsent(viewers.owner, owner -> {
+                    List<RenderFrame.Job> jobs = new ArrayList<>();
+                    jobsByOwner.add(jobs);
+                    return jobs;
+                }).add(new RenderFrame.Job(shape, tier, tierViewers, viewers.stagger));
+            }
+        });
+        return new RenderFrame(indexVersion, players.toArray(new Player[0]), worlds, positions, jobsByOwner);
+    }
+
+    /**
+     * The shapes one player sees from a block, with their detail tiers. It stays valid while the player is on
+     * the same block and neither the shapes nor the distances have changed, like the frame itself.
+     */
+    private static final class PlayerView {
+        private final long indexVersion;
+        private final World world;
+        private final int blockX, blockY, blockZ;
+        private final double renderDistance;
+        private final double lodDistance;
+        private final List<SeenShape> seen = new ArrayList<>();
+
+        private PlayerView(long indexVersion, Location location, double renderDistance, double lodDistance) {
+            this.indexVersion = indexVersion;
+            this.world = location.getWorld();
+            this.blockX = location.getBlockX();
+            this.blockY = location.getBlockY();
+            this.blockZ = location.getBlockZ();
+            this.renderDistance = renderDistance;
+            this.lodDistance = lodDistance;
+        }
+
+        private boolean isCurrent(long indexVersion, Location location, double renderDistance, double lodDistance) {
+            return indexVersion == this.indexVersion && location.getWorld() == world
+                    && location.getBlockX() == blockX && location.getBlockY() == blockY && location.getBlockZ() == blockZ
+                    && renderDistance == this.renderDistance && lodDistance == this.lodDistance;
+        }
+    }
+
+    /**
+     * A shape a player sees, and the detail tier they see it at.
+     */
+    private static final class SeenShape {
+        private final ShapeIndex.Entry entry;
+        private final ParticleShape shape;
+        private final int tier;
+
+        private SeenShape(ShapeIndex.Entry entry, ParticleShape shape, int tier) {
+            this.entry = entry;
+            this.shape = shape;
+            this.tier = tier;
+        }
+    }
+
+    /**
+     * The viewers of one shape, grouped by the detail tier they see. The list of a tier is only created once a player sees it.
+     */
+    private static final class TieredViewers {
+        private final UUID owner;
+        private final int stagger;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private final List<Player>[] byTier = new List[VoxelBuffer.DETAIL_TIERS];
+
+        private TieredViewers(UUID owner, String name) {
+            this.owner = owner;
+            // Mixed, so that owners and names with similar hash codes still land on different ticks
+            this.stagger = ((owner.hashCode() * 31 + name.hashCode()) * 0x9E3779B9) >>> 8;
+        }
+
+        private void add(int tier, Player player) {
+            if (byTier[tier] == null) byTier[tier] = new ArrayList<>(1);
+            byTier[tier].add(player);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Adapts rendering to the load of the server. Once per second it compares the average tick
+ * time to the configured target. While the server is slower, the throttle backs off step by
+ * step: the particle budget per tick shrinks and the refresh cycle grows, down to the configured
+ * minimum budget and up to the configured maximum refresh. Once the server is healthy again, it
+ * recovers step by step to the configured values. Shapes keep rendering while throttled, just
+ * with fewer particles per second.
+ *
+ * @author Silas Hörz
+ * @version 1.0
+ */
+package de.roundthing;
+
+import org.bukkit.Bukkit;
+
+public class RenderThrottle {
+
+    private static final int SAMPLE_TICKS = 20;
+    private static final double MIN_SCALE = 0.05;
+    private static final double BACK_OFF = 0.75; // The scale is multiplied by this every second the server is too slow
+    private static final double RECOVERY = 0.05; // The scale grows by this every second the server is healthy
+    private static final double HEALTHY_SHARE = 0.8; // The share of the target tick time below which the server counts as healthy
+
+    private final RoundThing plugin;
+    private volatile double scale = 1.0; // The share of the configured rendering rate currently allowed
+    private int ticksUntilSample = SAMPLE_TICKS;
+    private boolean supported = true;
+
+    public RenderThrottle(RoundThing plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Runs every tick on the server thread and updates the scale once per second.
+     */
+    public void tick() {
+        double targetMspt = plugin.getTargetMspt();
+        if (targetMspt <= 0 || !supported) {
+            scale = 1.0;
+            return;
+        }
+        if (--ticksUntilSample > 0) return;
+        ticksUntilSample = SAMPLE_TICKS;
+
+        double mspt;
+        try {
+            mspt = Bukkit.getServer().getAverageTickTime();
+        } catch (UnsupportedOperationException e) {
+            // Servers without a global tick time, like Folia, always render at the configured rate
+            supported = false;
+            scale = 1.0;
+            plugin.getLogger().warning("This server does not report its average tick time. Adaptive rendering is disabled.");
+            return;
+        }
+
+        double previous = scale;
+        if (mspt > targetMspt) {
+            scale = Math.max(getMinScale(), previous * BACK_OFF);
+            if (previous == 1.0 && scale < 1.0) {
+                plugin.getLogger().info(String.format("The server takes %.1f ms per tick. Reducing the particle rate.", mspt));
+            }
+        } else if (mspt < targetMspt * HEALTHY_SHARE && previous < 1.0) {
+            scale = Math.min(1.0, previous + RECOVERY);
+            if (scale == 1.0) {
+                plugin.getLogger().info("The server has recovered. Rendering at the full particle rate again.");
+            }
+        }
+    }
+
+    /**
+     * @return The scale at which both the budget and the refresh cycle have reached their bounds. Backing off
+     *         further would only delay the recovery.
+     */
+    private double getMinScale() {
+        long particlesPerTick = plugin.getParticlesPerTick();
+        double budgetScale = particlesPerTick > 0 ? (double) plugin.getMinParticlesPerTick() / particlesPerTick : 0;
+        double refreshScale = (double) Math.max(1, plugin.getRefreshTicks()) / Math.max(1, plugin.getMaxRefreshTicks());
+        return Math.min(1.0, Math.max(MIN_SCALE, Math.min(budgetScale, refreshScale)));
+    }
+
+    /**
+     * @return The share of the configured rendering rate currently allowed, from 1.0 down to the bounds.
+     */
+    public double getScale() {
+        return scale;
+    }
+
+    /**
+     * @return The refresh cycle in ticks, grown by the throttle up to the configured maximum.
+     */
+    public int getRefreshTicks() {
+        int refreshTicks = Math.max(1, plugin.getRefreshTicks());
+        double currentScale = scale;
+        if (currentScale >= 1.0) return refreshTicks;
+        int maxRefreshTicks = Math.max(refreshTicks, plugin.getMaxRefreshTicks());
+        return (int) Math.min(maxRefreshTicks, Math.ceil(refreshTicks / currentScale));
+    }
+
+    /**
+     * @return The particle budget per tick, shrunk by the throttle down to the configured minimum, or 0 for no limit.
+     */
+    public long getParticlesPerTick() {
+        long particlesPerTick = plugin.getParticlesPerTick();
+        double currentScale = scale;
+        if (currentScale >= 1.0 || particlesPerTick <= 0) return particlesPerTick;
+        long minParticlesPerTick = Math.max(1, Math.min(particlesPerTick, plugin.getMinParticlesPerTick()));
+        return Math.max(minParticlesPerTick, (long) (particlesPerTick * currentScale));
+    }
+}
@@ -0,0 +1,26 @@
+/**
+ * Evaluates the ring predicate of a tilted circle for one row of plane columns. The circle
+ * rasterizer calls it for every row of its scan, which makes it the hot loop for large rings.
+ * Implementations must select exactly the same columns, so the choice of kernel never changes
+ * the rasterized shape.
+ *
+ * @author Silas Hörz
+ * @version 1.0
+ */
+package de.roundthing;
+
+import java.util.BitSet;
+
+public interface RingRowKernel {
+
+    /**
+     * Sets the bit {@code rowOffset + v + scanRadius} in columns for every column (u, v) with
+     * v in [-scanRadius, scanRadius] whose plane point lies on the ring.
+     */
+    void markRow(int u, int scanRadius, double slopeU, double slopeV, double radius, int thickness, BitSet columns, int rowOffset);
+
+    /**
+     * @return A short name of the kernel for log messages.
+     */
+    String getName();
+}
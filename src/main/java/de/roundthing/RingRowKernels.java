@@ -0,0 +1,33 @@
+/**
+ * Selects the ring row kernel once per process. The Vector API kernel is used if the server
+ * was started with {@code --add-modules jdk.incubator.vector} and the plugin was built with the
+ * {@code vector} profile; otherwise, or if it cannot be loaded, the scalar kernel is used.
+ *
+ * @author Silas Hörz
+ * @version 1.0
+ */
+package de.roundthing;
+
+public final class RingRowKernels {
+
+    private static final RingRowKernel ACTIVE = select();
+
+    private RingRowKernels() {
+    }
+
+    public static RingRowKernel get() {
+        return ACTIVE;
+    }
+
+    private static RingRowKernel select() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                // Loaded reflectively, so the Vector API classes are never touched without the module
+                return (RingRowKernel) Class.forName("de.roundthing.VectorRingRowKernel").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // Fall through to the scalar kernel
+            }
+        }
+        return new ScalarRingRowKernel();
+    }
+}
@@ -8,17 +8,24 @@
  */
 package de.roundthing;
 
+import com.destroystokyo.paper.event.entity.EntityRemoveFromWorldEvent;
 import io.papermc.paper.threadedregions.scheduler.ScheduledTask;
 import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
+import org.bukkit.World;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
 import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.scheduler.BukkitTask;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
@@ -26,22 +33,75 @@ import java.util.concurrent.ConcurrentHashMap;
 public class RoundThing extends JavaPlugin implements Listener {
 
     private int particleLimit;
+    private double renderDistance;
+    private double lodDistance;
+    private int refreshTicks;
+    private long particlesPerTick;
+    private double targetMspt;
+    private long minParticlesPerTick;
+    private int maxRefreshTicks;
     private boolean isFoliaServer = false;
     private Object particleTask = null;
+    private ShapeRenderer shapeRenderer = null;
+    private DisplayRenderer displayRenderer = null;
+    private RenderFrameProducer frameProducer = null;
+    private boolean displayBackend;
+    private int maxDisplays;
+    private boolean mergeShapes;
 
     /**
      * A container class to hold all shapes for a single player.
+     * Shapes are only changed on the player's thread, but the creation workers and the
+     * render task read them concurrently.
      */
     public static class PlayerShapes {
-        public final Map<String, ParticleCircle> circles = new HashMap<>();
-        public final Map<String, ParticleSphere> spheres = new HashMap<>();
-        public final Map<String, ParticleLine> lines = new HashMap<>(); // ADDED: For lines
-        public int currentParticleCount = 0;
+        public final Map<String, ParticleCircle> circles = new ConcurrentHashMap<>();
+        public final Map<String, ParticleSphere> spheres = new ConcurrentHashMap<>();
+        public final Map<String, ParticleLine> lines = new ConcurrentHashMap<>(); // ADDED: For lines
+        public volatile int currentParticleCount = 0;
+        private long revision = 0; // Increased by every change of the shapes, guarded by this object
+
+        public synchronized long getRevision() {
+            return revision;
+        }
+
+        /**
+         * Records a change of the shapes, so that counts of the previous shapes are no longer applied.
+         * @return The new revision.
+         */
+        public synchronized long changed() {
+            return ++revision;
+        }
+
+        /**
+         * Sets the particle count, unless the shapes have changed since it was counted.
+         * @param revision The revision of the shapes that were counted.
+         * @return Whether the count was set.
+         */
+        public synchronized boolean setParticleCount(long count, long revision) {
+            if (this.revision != revision) return false;
+            currentParticleCount = (int) count;
+            return true;
+        }
+
+        /**
+         * @return All shapes of the player, of every type.
+         */
+        public List<ParticleShape> all() {
+            List<ParticleShape> all = new ArrayList<>(circles.size() + spheres.size() + lines.size());
+            all.addAll(circles.values());
+            all.addAll(spheres.values());
+            all.addAll(lines.values());
+            return all;
+        }
     }
 
     private final Map<UUID, PlayerShapes> allPlayerShapes = new ConcurrentHashMap<>();
+    private final ShapeIndex shapeIndex = new ShapeIndex();
+    private final RenderThrottle renderThrottle = new RenderThrottle(this);
     private StorageManager storageManager;
     private LocaleManager localeManager;
+    private ShapeCreationPipeline creationPipeline;
 
     @Override
     public void onEnable() {
@@ -49,7 +109,7 @@ public class RoundThing extends JavaPlugin implements Listener {
         try {
             Class.forName("io.papermc.paper.threadedregions.scheduler.GlobalRegionScheduler");
             this.isFoliaServer = true;
-            getLogger().info("Folia server detected. Using GlobalRegionScheduler.");
+            getLogger().info("Folia server detected. Drawing shapes on their region threads.");
         } catch (ClassNotFoundException e) {
             this.isFoliaServer = false;
             getLogger().info("Paper/Spigot server detected. Using BukkitScheduler.");
@@ -58,8 +118,11 @@ public class RoundThing extends JavaPlugin implements Listener {
         saveDefaultConfig();
         reloadPluginConfig();
 
+        getLogger().info("Voxelization path: " + RingRowKernels.get().getName() + ".");
+
         this.storageManager = new StorageManager(this);
         this.localeManager = new LocaleManager(this);
+        this.creationPipeline = new ShapeCreationPipeline(this, localeManager);
 
         // Command initializations
         CircleCommand circleCommand = new CircleCommand(this, localeManager);
@@ -78,27 +141,31 @@ public class RoundThing extends JavaPlugin implements Listener {
         getCommand("roundthing").setTabCompleter(new AdminTabCompleter());
 
         Bukkit.getPluginManager().registerEvents(this, this);
+        trackLoadedChunks();
 
         // Load data for any players who are already online (e.g., after a /reload)
         for (Player player : Bukkit.getOnlinePlayers()) {
             loadPlayerData(player.getUniqueId());
         }
 
-        // This is the main task that draws all particles for all shapes
-        Runnable particleRunnable = () -> {
-            for (PlayerShapes shapes : allPlayerShapes.values()) {
-                for (ParticleCircle circle : shapes.circles.values()) circle.draw();
-                for (ParticleSphere sphere : shapes.spheres.values()) sphere.draw();
-                for (ParticleLine line : shapes.lines.values()) line.draw(); // ADDED: Draw lines
-            }
-        };
+        // Rendering runs in two stages. The producer task builds a frame of the shapes near each player on the server thread,
+        // and the renderer replays the latest frame on its own thread, drawing a slice of each shape every tick.
+        // With the display backend, the frames are turned into display entities instead.
+        this.shapeRenderer = new ShapeRenderer(this);
+        this.displayRenderer = new DisplayRenderer(this, shapeRenderer);
+        RenderFrameProducer frameProducer = new RenderFrameProducer(this, shapeRenderer, displayRenderer);
+        this.frameProducer = frameProducer;
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            frameProducer.trackPlayer(player);
+        }
 
         // Start the correct scheduler based on the server type
         if (isFoliaServer) {
-            this.particleTask = Bukkit.getGlobalRegionScheduler().runAtFixedRate(this, (task) -> particleRunnable.run(), 20L, 10L);
+            this.particleTask = Bukkit.getGlobalRegionScheduler().runAtFixedRate(this, (task) -> frameProducer.run(), 20L, 1L);
         } else {
-            this.particleTask = Bukkit.getScheduler().runTaskTimerAsynchronously(this, particleRunnable, 20L, 10L);
+            this.particleTask = Bukkit.getScheduler().runTaskTimer(this, frameProducer, 20L, 1L);
         }
+        shapeRenderer.start();
 
         getLogger().info("RoundThing has been enabled.");
     }
@@ -113,23 +180,79 @@ public class RoundThing extends JavaPlugin implements Listener {
                 ((BukkitTask) this.particleTask).cancel();
             }
         }
+        if (this.shapeRenderer != null) {
+            this.shapeRenderer.shutdown();
+        }
+        if (this.displayRenderer != null) {
+            this.displayRenderer.clear(true);
+        }
+        if (this.creationPipeline != null) {
+            this.creationPipeline.shutdown();
+        }
 
         for (UUID uuid : allPlayerShapes.keySet()) {
             savePlayerData(uuid);
         }
+        if (this.storageManager != null) {
+            // Writes the saves queued above before the plugin is gone
+            this.storageManager.shutdown();
+        }
         allPlayerShapes.clear();
+        shapeIndex.clear();
+        shapeIndex.shutdown();
         getLogger().info("RoundThing has been disabled.");
     }
 
     @EventHandler
     public void onPlayerJoin(PlayerJoinEvent event) {
         loadPlayerData(event.getPlayer().getUniqueId());
+        if (frameProducer != null) {
+            frameProducer.trackPlayer(event.getPlayer());
+        }
     }
 
     @EventHandler
     public void onPlayerQuit(PlayerQuitEvent event) {
         savePlayerData(event.getPlayer().getUniqueId());
-        allPlayerShapes.remove(event.getPlayer().getUniqueId());
+        PlayerShapes shapes = allPlayerShapes.remove(event.getPlayer().getUniqueId());
+        if (shapes != null) {
+            shapeIndex.removeAll(shapes);
+        }
+    }
+
+    @EventHandler
+    public void onEntityRemoveFromWorld(EntityRemoveFromWorldEvent event) {
+        if (displayRenderer != null) {
+            displayRenderer.entityRemoved(event.getEntity());
+        }
+    }
+
+    @EventHandler
+    public void onChunkLoad(ChunkLoadEvent event) {
+        shapeIndex.chunkLoaded(event.getWorld(), event.getChunk().getX(), event.getChunk().getZ());
+    }
+
+    @EventHandler
+    public void onChunkUnload(ChunkUnloadEvent event) {
+        shapeIndex.chunkUnloaded(event.getWorld(), event.getChunk().getX(), event.getChunk().getZ());
+    }
+
+    /**
+     * Registers the chunks that are already loaded, e.g. the spawn area or everything after a /reload.
+     * Later changes arrive through the chunk events.
+     */
+    private void trackLoadedChunks() {
+        try {
+            for (World world : Bukkit.getWorlds()) {
+                for (Chunk chunk : world.getLoadedChunks()) {
+                    shapeIndex.chunkLoaded(world, chunk.getX(), chunk.getZ());
+                }
+            }
+        } catch (UnsupportedOperationException e) {
+            // Without a complete list of loaded chunks, shapes could stay inactive although players are near them
+            shapeIndex.setChunkTracking(false);
+            getLogger().warning("Loaded chunks cannot be listed on this server. All shapes are treated as active.");
+        }
     }
 
     public void loadPlayerData(UUID uuid) {
@@ -137,28 +260,51 @@ public class RoundThing extends JavaPlugin implements Listener {
         PlayerShapes shapes = storageManager.loadPlayerShapes(uuid);
 
         // Recalculate the initial particle budget including all shape types
-        int totalParticles = 0;
-        for (ParticleCircle circle : shapes.circles.values()) totalParticles += circle.getParticleCount();
-        for (ParticleSphere sphere : shapes.spheres.values()) totalParticles += sphere.getParticleCount();
-        for (ParticleLine line : shapes.lines.values()) totalParticles += line.getParticleCount(); // ADDED: Count line particles
-        shapes.currentParticleCount = totalParticles;
+        recountParticles(shapes);
 
-        allPlayerShapes.put(uuid, shapes);
-        getLogger().info("Loaded data for player " + uuid + " (" + totalParticles + " particles).");
+        PlayerShapes previousShapes = allPlayerShapes.put(uuid, shapes);
+        if (previousShapes != null) {
+            shapeIndex.removeAll(previousShapes);
+        }
+        shapeIndex.addAll(uuid, shapes);
+        getLogger().info("Loaded data for player " + uuid + " (" + shapes.all().size() + " shapes).");
     }
 
     public void savePlayerData(UUID uuid) {
         PlayerShapes shapes = allPlayerShapes.get(uuid);
         if (shapes != null) {
-            // UPDATED: Saves all shapes at once
+            // UPDATED: Saves all shapes at once, written in the background
             storageManager.savePlayerShapes(uuid, shapes);
-            getLogger().info("Saved data for player " + uuid + ".");
+            getLogger().info("Queued data of player " + uuid + " for saving.");
         }
     }
 
     public void reloadPluginConfig() {
         reloadConfig();
         this.particleLimit = getConfig().getInt("particle-limit", 10000);
+        this.renderDistance = getConfig().getDouble("render-distance", 48.0);
+        this.lodDistance = getConfig().getDouble("lod-distance", 24.0);
+        this.refreshTicks = Math.max(1, getConfig().getInt("refresh-ticks", 10));
+        this.particlesPerTick = getConfig().getLong("particles-per-tick", 20000);
+        this.targetMspt = getConfig().getDouble("target-mspt", 45.0);
+        this.minParticlesPerTick = getConfig().getLong("min-particles-per-tick", 2000);
+        this.maxRefreshTicks = getConfig().getInt("max-refresh-ticks", 40);
+        String renderBackend = getConfig().getString("render-backend", "particles");
+        this.displayBackend = "displays".equalsIgnoreCase(renderBackend);
+        this.maxDisplays = Math.max(0, getConfig().getInt("max-displays", 5000));
+        if (!displayBackend && !"particles".equalsIgnoreCase(renderBackend)) {
+            getLogger().warning("Unknown render-backend '" + renderBackend + "'. Using particles.");
+        }
+        TemplateCache.getInstance().setMaxEntries(getConfig().getInt("template-cache-size", TemplateCache.DEFAULT_MAX_ENTRIES));
+        ParallelVoxelizer.setThreshold(getConfig().getInt("parallel-voxelization-threshold", ParallelVoxelizer.DEFAULT_THRESHOLD));
+        ParticleSphere.setVisibleSurfaceOnly(getConfig().getBoolean("visible-surface-only", false));
+        boolean mergeShapes = getConfig().getBoolean("merge-overlapping-shapes", false);
+        if (mergeShapes != this.mergeShapes) {
+            this.mergeShapes = mergeShapes;
+            shapeIndex.setMerging(mergeShapes);
+            // The budgets of all loaded players change with the way overlaps are counted
+            allPlayerShapes.values().forEach(this::recountParticles);
+        }
     }
 
     public int getParticleLimit() {
@@ -167,6 +313,71 @@ public class RoundThing extends JavaPlugin implements Listener {
 
 
 
+    public double getRenderDistance() {
+        return this.renderDistance;
+    }
+
+    public double getLodDistance() {
+        return this.lodDistance;
+    }
+
+    public int getRefreshTicks() {
+        return this.refreshTicks;
+    }
+
+    public long getParticlesPerTick() {
+        return this.particlesPerTick;
+    }
+
+    public double getTargetMspt() {
+        return this.targetMspt;
+    }
+
+    public long getMinParticlesPerTick() {
+        return this.minParticlesPerTick;
+    }
+
+    public int getMaxRefreshTicks() {
+        return this.maxRefreshTicks;
+    }
+
+    public boolean isDisplayBackend() {
+        return this.displayBackend;
+    }
+
+    public int getMaxDisplays() {
+        return this.maxDisplays;
+    }
+
+    public boolean isMergingShapes() {
+        return this.mergeShapes;
+    }
+
+    /**
+     * Counts the particles charged to a player for the given shapes. With merging, voxels shared by
+     * several shapes are charged once; otherwise every shape is charged in full.
+     */
+    public long countParticles(Collection<? extends ParticleShape> shapes) {
+        if (mergeShapes) return ShapeUnion.countUnion(shapes);
+        long total = 0;
+        for (ParticleShape shape : shapes) total += shape.getParticleCount();
+        return total;
+    }
+
+    /**
+     * Recalculates the particles charged to a player after their shapes have changed. With merging, the
+     * union is counted on a worker of the creation pipeline. Until then the previous count is kept, which
+     * only affects the messages, as creations count the union again on their own.
+     */
+    public void recountParticles(PlayerShapes shapes) {
+        long revision = shapes.changed();
+        if (!mergeShapes || creationPipeline == null) {
+            shapes.setParticleCount(countParticles(shapes.all()), revision);
+            return;
+        }
+        creationPipeline.runInBackground(() -> shapes.setParticleCount(countParticles(shapes.all()), revision));
+    }
+
     public void setParticleLimit(int limit) {
         this.particleLimit = limit;
     }
@@ -175,6 +386,26 @@ public class RoundThing extends JavaPlugin implements Listener {
         return allPlayerShapes.computeIfAbsent(uuid, k -> new PlayerShapes());
     }
 
+    /**
+     * @return The shapes of a player whose data is loaded, or null. Unlike getPlayerShapes,
+     *         this never creates an empty entry for a player who has already left.
+     */
+    public PlayerShapes getLoadedPlayerShapes(UUID uuid) {
+        return allPlayerShapes.get(uuid);
+    }
+
+    public StorageManager getStorageManager() {
+        return storageManager;
+    }
+
+    public ShapeIndex getShapeIndex() {
+        return shapeIndex;
+    }
+
+    public RenderThrottle getRenderThrottle() {
+        return renderThrottle;
+    }
+
     public Map<String, ParticleCircle> getPlayerCircles(UUID uuid) {
         return getPlayerShapes(uuid).circles;
     }
@@ -191,4 +422,12 @@ public class RoundThing extends JavaPlugin implements Listener {
     public LocaleManager getLocaleManager() {
         return localeManager;
     }
+
+    public ShapeCreationPipeline getCreationPipeline() {
+        return creationPipeline;
+    }
+
+    public boolean isFoliaServer() {
+        return isFoliaServer;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,42 @@
+/**
+ * The portable ring row kernel, evaluating one column at a time with scalar double math.
+ * It is always available and serves as the fallback for the Vector API kernel.
+ *
+ * @author Silas Hörz
+ * @version 1.0
+ */
+package de.roundthing;
+
+import java.util.BitSet;
+
+public final class ScalarRingRowKernel implements RingRowKernel {
+
+    @Override
+    public void markRow(int u, int scanRadius, double slopeU, double slopeV, double radius, int thickness, BitSet columns, int rowOffset) {
+        double radiusSquared = radius * radius;
+        boolean filled = thickness >= radius;
+        for (int v = -scanRadius; v <= scanRadius; v++) {
+            int columnSquared = u * u + v * v;
+            if (columnSquared > radiusSquared) continue;
+            double height = u * slopeU + v * slopeV;
+            double distanceSquared = columnSquared + height * height;
+            if (distanceSquared > radiusSquared) continue;
+
+            if (!filled) {
+                // The tilt foreshortens the ring when it is projected onto the (u, v) columns. Widening it by the
+                // length of the in-plane distance gradient keeps the projection as thick as an untilted ring.
+                double gradientU = u + height * slopeU;
+                double gradientV = v + height * slopeV;
+                double stretch = distanceSquared == 0 ? 1 : Math.sqrt((gradientU * gradientU + gradientV * gradientV) / distanceSquared);
+                double innerRadius = radius - thickness * stretch;
+                if (innerRadius > 0 && distanceSquared < innerRadius * innerRadius) continue;
+            }
+            columns.set(rowOffset + v + scanRadius);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "scalar";
+    }
+}
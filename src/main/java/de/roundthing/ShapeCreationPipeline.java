@@ -0,0 +1,247 @@
+/**
+ * Creates shapes off the command thread. The commands only parse and validate their arguments
+ * and hand the shape over to this pipeline. Counting, the budget check and rasterizing run on a
+ * worker pool, and the finished shape is committed to the player's shapes back on the thread
+ * that owns the player, followed by the success message. Creations of the same player are
+ * queued and run one after another, so each budget check sees the result of the previous one.
+ * <p>
+ * The worker also counts the player's total with the new shape, which with merging means
+ * counting the union of all their shapes. The commit only checks that the shapes have not
+ * changed since; if they have, the total is counted again on a worker before committing.
+ *
+ * @author Silas Hörz
+ * @version 1.0
+ */
+package de.roundthing;
+
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.LongUnaryOperator;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+
+public class ShapeCreationPipeline {
+
+    private final RoundThing plugin;
+    private final LocaleManager localeManager;
+    private final ExecutorService workers;
+    // The last queued creation of each player; the next one starts when it has completed
+    private final Map<UUID, CompletableFuture<Void>> queues = new ConcurrentHashMap<>();
+
+    public ShapeCreationPipeline(RoundThing plugin, LocaleManager localeManager) {
+        this.plugin = plugin;
+        this.localeManager = localeManager;
+        AtomicInteger threadCount = new AtomicInteger();
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        this.workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "RoundThing-Creation-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues the creation of a shape for a player.
+     * @param name The name of the shape. An existing shape with this name is replaced.
+     * @param shapeMap Selects the map of the player's shapes the shape belongs to.
+     * @param counter Counts the particles of the shape without rasterizing it. It gets the most particles that would
+     *                still fit into the budget and may stop counting, returning a lower bound, once the shape exceeds them.
+     * @param factory Constructs and thereby rasterizes the shape.
+     * @param successKey The message sent to the player once the shape has been committed.
+     */
+    public <T extends ParticleShape> void submit(Player player, String name, Function<RoundThing.PlayerShapes, Map<String, T>> shapeMap,
+                                                 LongUnaryOperator counter, Supplier<T> factory, String successKey) {
+        UUID uuid = player.getUniqueId();
+        CompletableFuture<Void> queued = queues.compute(uuid, (key, previous) ->
+                (previous != null ? previous : CompletableFuture.<Void>completedFuture(null))
+                        .thenCompose(ignored -> runStep(player, name, () -> prepare(player, name, shapeMap, counter, factory, successKey))));
+        queued.whenComplete((result, error) -> queues.remove(uuid, queued));
+    }
+
+    /**
+     * Runs a task on the workers, like a count that would hold up the command thread.
+     * Once the pipeline has been shut down, the task runs on the calling thread instead.
+     */
+    public void runInBackground(Runnable task) {
+        try {
+            workers.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    /**
+     * Stops the workers. Creations that have not been committed yet are dropped.
+     */
+    public void shutdown() {
+        workers.shutdownNow();
+        queues.clear();
+    }
+
+    /**
+     * Runs a step of a creation on a worker and then the action it returns on the player's thread.
+     * @return A future that completes once the action, and any step it started, has finished.
+     */
+    private CompletableFuture<Void> runStep(Player player, String name, Supplier<PlayerAction> step) {
+        return CompletableFuture.supplyAsync(step, workers)
+                .handle((action, error) -> {
+                    if (error == null) return action;
+                    plugin.getLogger().log(Level.SEVERE, "Could not create shape '" + name + "' for player " + player.getUniqueId() + ".", error);
+                    return (PlayerAction) () -> {
+                        localeManager.sendMessage(player, "shape_creation_failed", "%name%", name);
+                        return null;
+                    };
+                })
+                .thenCompose(action -> runOnPlayerThread(player, action));
+    }
+
+    /**
+     * Runs on a worker. Rejects shapes that exceed the budget before rasterizing them.
+     * @return The action to run on the player's thread, or null if the player has left.
+     */
+    private <T extends ParticleShape> PlayerAction prepare(Player player, String name, Function<RoundThing.PlayerShapes, Map<String, T>> shapeMap,
+                                                       LongUnaryOperator counter, Supplier<T> factory, String successKey) {
+        RoundThing.PlayerShapes playerShapes = plugin.getLoadedPlayerShapes(player.getUniqueId());
+        if (playerShapes == null) return null;
+
+        int oldParticleCount = getParticleCount(shapeMap.apply(playerShapes).get(name));
+        long remainingParticleCount = playerShapes.currentParticleCount - oldParticleCount;
+        // Merged shapes may share voxels with the others, which is only known after rasterizing. Until then
+        // only the shape on its own has to fit, as the union is never smaller than its largest part.
+        boolean merging = plugin.isMergingShapes();
+        long maxParticles = merging ? plugin.getParticleLimit() : Math.max(0, plugin.getParticleLimit() - remainingParticleCount);
+        long newParticleCount = counter.applyAsLong(maxParticles);
+        long estimatedTotal = merging
+                ? Math.max(remainingParticleCount, newParticleCount)
+                : remainingParticleCount + newParticleCount;
+        if (estimatedTotal > plugin.getParticleLimit()) {
+            return () -> {
+                sendBudgetExceeded(player, remainingParticleCount, newParticleCount);
+                return null;
+            };
+        }
+
+        T shape = factory.get();
+        return count(player, playerShapes, name, shapeMap, shape, successKey);
+    }
+
+    /**
+     * Runs on a worker. Counts the particles of the player's shapes with the new shape in place of the old one.
+     * @return The action to run on the player's thread.
+     */
+    private <T extends ParticleShape> PlayerAction count(Player player, RoundThing.PlayerShapes playerShapes, String name,
+                                                         Function<RoundThing.PlayerShapes, Map<String, T>> shapeMap, T shape, String successKey) {
+        // Read before the shapes, so a change made while counting them is noticed by the commit
+        long revision = playerShapes.getRevision();
+        List<ParticleShape> remainingShapes = playerShapes.all();
+        T oldShape = shapeMap.apply(playerShapes).get(name);
+        if (oldShape != null) remainingShapes.remove(oldShape);
+        long remainingParticleCount = plugin.countParticles(remainingShapes);
+        remainingShapes.add(shape);
+        long newTotal = plugin.countParticles(remainingShapes);
+        if (newTotal > plugin.getParticleLimit()) {
+            return () -> {
+                sendBudgetExceeded(player, remainingParticleCount, newTotal - remainingParticleCount);
+                return null;
+            };
+        }
+        return () -> commit(player, playerShapes, name, shapeMap, shape, successKey, revision, newTotal);
+    }
+
+    /**
+     * Runs on the player's thread and adds the shape to the player's shapes.
+     * @param revision The revision of the player's shapes the total was counted for.
+     * @return The count started again because the shapes have changed since, or null.
+     */
+    private <T extends ParticleShape> CompletableFuture<Void> commit(Player player, RoundThing.PlayerShapes playerShapes, String name,
+                                                                      Function<RoundThing.PlayerShapes, Map<String, T>> shapeMap, T shape,
+                                                                      String successKey, long revision, long newTotal) {
+        UUID uuid = player.getUniqueId();
+        if (plugin.getLoadedPlayerShapes(uuid) != playerShapes) return null; // The player's data was unloaded in the meantime
+
+        // The player may have deleted or replaced shapes since the worker counted them
+        if (playerShapes.getRevision() != revision) {
+            return runStep(player, name, () -> count(player, playerShapes, name, shapeMap, shape, successKey));
+        }
+
+        T replacedShape = shapeMap.apply(playerShapes).put(name, shape);
+        if (replacedShape != null) {
+            plugin.getShapeIndex().remove(replacedShape);
+        }
+        plugin.getShapeIndex().add(uuid, name, shape);
+        playerShapes.setParticleCount(newTotal, playerShapes.changed());
+        plugin.savePlayerData(uuid);
+        localeManager.sendMessage(player, successKey, "%name%", name);
+        return null;
+    }
+
+    /**
+     * Runs the action on the thread that owns the player: the player's region on Folia, the main thread otherwise.
+     * @return A future that completes once the action has run, or can no longer run, and what it started has finished.
+     */
+    private CompletableFuture<Void> runOnPlayerThread(Player player, PlayerAction action) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        if (action == null || !plugin.isEnabled()) {
+            done.complete(null);
+            return done;
+        }
+        Runnable task = () -> {
+            CompletableFuture<Void> next = null;
+            try {
+                if (player.isOnline()) next = action.run();
+            } finally {
+                if (next == null) {
+                    done.complete(null);
+                } else {
+                    next.whenComplete((result, error) -> done.complete(null));
+                }
+            }
+        };
+        if (plugin.isFoliaServer()) {
+            // The retired callback runs instead of the task if the player leaves in the meantime
+            if (!player.getScheduler().execute(plugin, task, () -> done.complete(null), 1L)) {
+                done.complete(null);
+            }
+        } else {
+            Bukkit.getScheduler().runTask(plugin, task);
+        }
+        return done;
+    }
+
+    /**
+     * @param currentParticleCount The particles of the player's other shapes.
+     * @param newParticleCount The particles the new shape would add.
+     */
+    private void sendBudgetExceeded(Player player, long currentParticleCount, long newParticleCount) {
+        localeManager.sendMessage(player, "budget_exceeded",
+                "%new%", String.valueOf(newParticleCount),
+                "%current%", String.valueOf(currentParticleCount),
+                "%limit%", String.valueOf(plugin.getParticleLimit())
+        );
+    }
+
+    private static int getParticleCount(ParticleShape shape) {
+        return shape != null ? shape.getParticleCount() : 0;
+    }
+
+    /**
+     * A step of a creation that runs on the player's thread.
+     */
+    private interface PlayerAction {
+        /**
+         * @return A further step it started, or null if the creation is finished.
+         */
+        CompletableFuture<Void> run();
+    }
+}
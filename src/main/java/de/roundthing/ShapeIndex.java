@@ -0,0 +1,384 @@
+/**
+ * A spatial index of all loaded shapes, partitioned by world and chunk. Every chunk cell maps
+ * to the shapes whose bounding box overlaps it, so finding the shapes near a position only
+ * visits the cells around it instead of every shape of every player. The index is updated
+ * whenever shapes are created, deleted, loaded or unloaded, and may be read from any thread.
+ * <p>
+ * The index also follows the chunk load events. Every shape counts how many of the chunks it
+ * overlaps are loaded, and shapes without a loaded chunk are inactive: lookups skip them, so
+ * shapes in areas that nobody has loaded cost nothing until one of their chunks loads again.
+ * <p>
+ * When merging is on, every entry also holds the part of its shape that is drawn: the voxels
+ * not taken by overlapping shapes of the same owner with a higher priority, see {@link ShapeUnion}.
+ * Adding or removing a shape only updates the parts of the shapes overlapping it. The parts are
+ * computed on a background thread, so the threads that change the index never subtract shapes;
+ * until its part is ready, a new shape is drawn in full.
+ *
+ * @author Silas Hörz
+ * @version 1.0
+ */
+package de.roundthing;
+
+import org.bukkit.World;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+public class ShapeIndex {
+
+    private static final int CELL_SHIFT = 4; // Cells are chunks of 16 x 16 blocks
+
+    private final Map<World, WorldCells> cellsByWorld = new ConcurrentHashMap<>();
+    private final Map<ParticleShape, Entry> entries = new ConcurrentHashMap<>();
+    private volatile boolean chunkTracking = true;
+    private volatile boolean merging = false;
+    // Increased by every change that may change the result of a lookup
+    private final AtomicLong version = new AtomicLong();
+    // The entries whose parts are out of date, recomputed one after another by the part updater
+    private final Set<Entry> staleParts = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean partUpdateScheduled = new AtomicBoolean();
+    private final ExecutorService partUpdater = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "RoundThing-Merge");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * A shape in the index together with its owner and name.
+     */
+    public static final class Entry {
+        private final UUID owner;
+        private final String name;
+        private final ParticleShape shape;
+        private volatile int loadedChunks = 0; // Only changed while holding the lock of the world's cells
+        private volatile ParticleShape renderShape; // Only changed while holding the lock of the world's cells
+
+        private Entry(UUID owner, String name, ParticleShape shape) {
+            this.owner = owner;
+            this.name = name;
+            this.shape = shape;
+            this.renderShape = shape;
+        }
+
+        public UUID getOwner() { return owner; }
+        public String getName() { return name; }
+        public ParticleShape getShape() { return shape; }
+        // The part of the shape that is drawn. Without merging, this is the shape itself.
+        public ParticleShape getRenderShape() { return renderShape; }
+    }
+
+    /**
+     * The cells and loaded chunks of one world. Changes to the loaded chunks and to the
+     * loaded chunk counts of the entries are made while holding the lock of this object.
+     */
+    private static final class WorldCells {
+        private final Map<Long, Set<Entry>> cells = new ConcurrentHashMap<>();
+        private final Set<Long> loadedChunks = new HashSet<>();
+    }
+
+    public void add(UUID owner, String name, ParticleShape shape) {
+        Entry entry = new Entry(owner, name, shape);
+        if (entries.putIfAbsent(shape, entry) != null) return;
+
+        WorldCells worldCells = cellsByWorld.computeIfAbsent(shape.getWorld(), world -> new WorldCells());
+        synchronized (worldCells) {
+            for (int cellX = cell(shape.getMinX()); cellX <= cell(shape.getMaxX()); cellX++) {
+                for (int cellZ = cell(shape.getMinZ()); cellZ <= cell(shape.getMaxZ()); cellZ++) {
+                    long cellKey = cellKey(cellX, cellZ);
+                    worldCells.cells.compute(cellKey, (key, cell) -> {
+                        if (cell == null) cell = ConcurrentHashMap.newKeySet();
+                        cell.add(entry);
+                        return cell;
+                    });
+                    if (worldCells.loadedChunks.contains(cellKey)) entry.loadedChunks++;
+                }
+            }
+            if (merging) {
+                staleParts.add(entry);
+                for (Entry other : overlappingEntries(worldCells, entry)) {
+                    if (ShapeUnion.hasPriority(shape, name, other.shape, other.name)) staleParts.add(other);
+                }
+            }
+        }
+        version.incrementAndGet();
+        if (merging) schedulePartUpdate();
+    }
+
+    public void remove(ParticleShape shape) {
+        Entry entry = entries.remove(shape);
+        if (entry == null) return;
+
+        WorldCells worldCells = cellsByWorld.get(shape.getWorld());
+        if (worldCells == null) return;
+        synchronized (worldCells) {
+            for (int cellX = cell(shape.getMinX()); cellX <= cell(shape.getMaxX()); cellX++) {
+                for (int cellZ = cell(shape.getMinZ()); cellZ <= cell(shape.getMaxZ()); cellZ++) {
+                    // Empty cells are dropped, so the index only grows with the area covered by shapes
+                    worldCells.cells.computeIfPresent(cellKey(cellX, cellZ), (key, cell) -> {
+                        cell.remove(entry);
+                        return cell.isEmpty() ? null : cell;
+                    });
+                }
+            }
+            // The voxels this shape took go back to the overlapping shapes below it
+            if (merging) {
+                for (Entry other : overlappingEntries(worldCells, entry)) {
+                    if (ShapeUnion.hasPriority(shape, entry.name, other.shape, other.name)) staleParts.add(other);
+                }
+            }
+        }
+        version.incrementAndGet();
+        if (merging) schedulePartUpdate();
+    }
+
+    /**
+     * Marks a chunk as loaded and activates the shapes overlapping it. Repeated calls for the same chunk have no effect.
+     */
+    public void chunkLoaded(World world, int chunkX, int chunkZ) {
+        WorldCells worldCells = cellsByWorld.computeIfAbsent(world, key -> new WorldCells());
+        long cellKey = cellKey(chunkX, chunkZ); // Cells and chunks coincide
+        synchronized (worldCells) {
+            if (!worldCells.loadedChunks.add(cellKey)) return;
+            Set<Entry> cell = worldCells.cells.get(cellKey);
+            if (cell == null) return;
+            for (Entry entry : cell) entry.loadedChunks++;
+        }
+        version.incrementAndGet();
+    }
+
+    /**
+     * Marks a chunk as unloaded. Shapes without any other loaded chunk become inactive.
+     */
+    public void chunkUnloaded(World world, int chunkX, int chunkZ) {
+        WorldCells worldCells = cellsByWorld.get(world);
+        if (worldCells == null) return;
+        long cellKey = cellKey(chunkX, chunkZ); // Cells and chunks coincide
+        synchronized (worldCells) {
+            if (!worldCells.loadedChunks.remove(cellKey)) return;
+            Set<Entry> cell = worldCells.cells.get(cellKey);
+            if (cell == null) return;
+            for (Entry entry : cell) entry.loadedChunks--;
+        }
+        version.incrementAndGet();
+    }
+
+    /**
+     * @return Whether the chunk is loaded. Without chunk tracking every chunk counts as loaded.
+     */
+    public boolean isChunkLoaded(World world, int chunkX, int chunkZ) {
+        if (!chunkTracking) return true;
+        WorldCells worldCells = cellsByWorld.get(world);
+        if (worldCells == null) return false;
+        synchronized (worldCells) {
+            return worldCells.loadedChunks.contains(cellKey(chunkX, chunkZ)); // Cells and chunks coincide
+        }
+    }
+
+    /**
+     * Turns the chunk tracking on or off. Without it every shape counts as active,
+     * which is the fallback for servers that cannot list their loaded chunks.
+     */
+    public void setChunkTracking(boolean chunkTracking) {
+        this.chunkTracking = chunkTracking;
+        version.incrementAndGet();
+    }
+
+    /**
+     * Turns the merging of overlapping shapes on or off and updates the parts of all shapes.
+     */
+    public void setMerging(boolean merging) {
+        if (this.merging == merging) return;
+        this.merging = merging;
+        for (Map.Entry<World, WorldCells> world : cellsByWorld.entrySet()) {
+            WorldCells worldCells = world.getValue();
+            synchronized (worldCells) {
+                for (Entry entry : entries.values()) {
+                    if (entry.shape.getWorld() != world.getKey()) continue;
+                    if (merging) {
+                        staleParts.add(entry);
+                    } else {
+                        entry.renderShape = entry.shape;
+                    }
+                }
+            }
+        }
+        version.incrementAndGet();
+        if (merging) schedulePartUpdate();
+    }
+
+    /**
+     * Stops the part updater. Parts that are still out of date are not computed anymore.
+     */
+    public void shutdown() {
+        partUpdater.shutdownNow();
+    }
+
+    /**
+     * Adds all shapes of a player whose data has just been loaded.
+     */
+    public void addAll(UUID owner, RoundThing.PlayerShapes shapes) {
+        shapes.circles.forEach((name, circle) -> add(owner, name, circle));
+        shapes.spheres.forEach((name, sphere) -> add(owner, name, sphere));
+        shapes.lines.forEach((name, line) -> add(owner, name, line));
+    }
+
+    /**
+     * Removes all shapes of a player whose data is being unloaded.
+     */
+    public void removeAll(RoundThing.PlayerShapes shapes) {
+        shapes.circles.values().forEach(this::remove);
+        shapes.spheres.values().forEach(this::remove);
+        shapes.lines.values().forEach(this::remove);
+    }
+
+    /**
+     * Removes all shapes. The loaded chunks are kept, as they do not depend on the shapes.
+     */
+    public void clear() {
+        for (WorldCells worldCells : cellsByWorld.values()) {
+            synchronized (worldCells) {
+                worldCells.cells.clear();
+            }
+        }
+        entries.clear();
+        staleParts.clear();
+        version.incrementAndGet();
+    }
+
+    /**
+     * Passes every active shape whose bounding box lies within the given distance of the point to the consumer, exactly once.
+     */
+    public void forEachNear(World world, double x, double y, double z, double distance, Consumer<Entry> consumer) {
+        WorldCells worldCells = cellsByWorld.get(world);
+        if (worldCells == null) return;
+        Map<Long, Set<Entry>> cells = worldCells.cells;
+        boolean activeOnly = chunkTracking;
+
+        double distanceSquared = distance * distance;
+        int minCellX = cell((int) Math.floor(x - distance));
+        int maxCellX = cell((int) Math.floor(x + distance));
+        int minCellZ = cell((int) Math.floor(z - distance));
+        int maxCellZ = cell((int) Math.floor(z + distance));
+        for (int cellX = minCellX; cellX <= maxCellX; cellX++) {
+            for (int cellZ = minCellZ; cellZ <= maxCellZ; cellZ++) {
+                Set<Entry> cell = cells.get(cellKey(cellX, cellZ));
+                if (cell == null) continue;
+                for (Entry entry : cell) {
+                    if (activeOnly && entry.loadedChunks <= 0) continue;
+                    ParticleShape shape = entry.shape;
+                    // A shape spanning several cells is only reported from the first of them inside the query
+                    if (cellX != Math.max(minCellX, cell(shape.getMinX())) || cellZ != Math.max(minCellZ, cell(shape.getMinZ()))) continue;
+                    if (shape.distanceSquared(x, y, z) > distanceSquared) continue;
+                    consumer.accept(entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return A number that changes whenever shapes are added, removed, activated or deactivated.
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * @return The number of shapes in the index.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    private void schedulePartUpdate() {
+        if (!partUpdateScheduled.compareAndSet(false, true)) return;
+        try {
+            partUpdater.execute(this::updateStaleParts);
+        } catch (RejectedExecutionException e) {
+            partUpdateScheduled.set(false); // Shut down; the parts are no longer needed
+        }
+    }
+
+    /**
+     * Runs on the part updater. Entries that become stale again while it runs are updated once more by the next run.
+     */
+    private void updateStaleParts() {
+        partUpdateScheduled.set(false);
+        boolean updated = false;
+        for (Iterator<Entry> iterator = staleParts.iterator(); iterator.hasNext(); ) {
+            Entry entry = iterator.next();
+            iterator.remove();
+            updated |= updatePart(entry);
+        }
+        if (updated) version.incrementAndGet();
+    }
+
+    /**
+     * Recomputes the drawn part of an entry from the overlapping shapes of its owner that have a higher priority.
+     * Only looking up these shapes holds the lock of the world's cells, the subtraction runs without it.
+     * @return Whether the part was replaced.
+     */
+    private boolean updatePart(Entry entry) {
+        WorldCells worldCells = cellsByWorld.get(entry.shape.getWorld());
+        if (worldCells == null) return false;
+        List<ParticleShape> higherPriority = new ArrayList<>();
+        synchronized (worldCells) {
+            if (!merging || entries.get(entry.shape) != entry) return false;
+            for (Entry other : overlappingEntries(worldCells, entry)) {
+                if (ShapeUnion.hasPriority(other.shape, other.name, entry.shape, entry.name)) higherPriority.add(other.shape);
+            }
+        }
+        ParticleShape part = ShapeUnion.subtract(entry.shape, higherPriority);
+        synchronized (worldCells) {
+            // Merging may have been turned off or the shape removed meanwhile; other changes marked the entry stale again
+            if (!merging || entries.get(entry.shape) != entry) return false;
+            entry.renderShape = part;
+        }
+        return true;
+    }
+
+    /**
+     * @return The other entries of the same owner whose bounding boxes intersect the entry's bounding box.
+     */
+    private static List<Entry> overlappingEntries(WorldCells worldCells, Entry entry) {
+        ParticleShape shape = entry.shape;
+        Set<Entry> found = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<Entry> overlapping = new ArrayList<>();
+        for (int cellX = cell(shape.getMinX()); cellX <= cell(shape.getMaxX()); cellX++) {
+            for (int cellZ = cell(shape.getMinZ()); cellZ <= cell(shape.getMaxZ()); cellZ++) {
+                Set<Entry> cell = worldCells.cells.get(cellKey(cellX, cellZ));
+                if (cell == null) continue;
+                for (Entry other : cell) {
+                    if (other == entry || !other.owner.equals(entry.owner) || !found.add(other)) continue;
+                    ParticleShape otherShape = other.shape;
+                    if (otherShape.getMaxX() < shape.getMinX() || otherShape.getMinX() > shape.getMaxX()
+                            || otherShape.getMaxY() < shape.getMinY() || otherShape.getMinY() > shape.getMaxY()
+                            || otherShape.getMaxZ() < shape.getMinZ() || otherShape.getMinZ() > shape.getMaxZ()) continue;
+                    overlapping.add(other);
+                }
+            }
+        }
+        return overlapping;
+    }
+
+    private static int cell(int blockCoordinate) {
+        return blockCoordinate >> CELL_SHIFT;
+    }
+
+    private static long cellKey(int cellX, int cellZ) {
+        return ((long) cellX << 32) | (cellZ & 0xFFFFFFFFL);
+    }
+}
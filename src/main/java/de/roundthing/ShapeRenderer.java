@@ -0,0 +1,402 @@
+/**
+ * The second stage of rendering. It runs every tick on a dedicated render thread and replays
+ * the latest {@link RenderFrame} built by the {@link RenderFrameProducer}, spreading each refresh
+ * cycle over the configured number of ticks. A new frame is taken at the start of a cycle, so
+ * the producer and the commands never wait for rendering, and rendering only ever sees complete
+ * frames. Every tick draws the next slice of each job of the frame, so a shape is drawn
+ * completely once per cycle instead of in a single burst. The cycles of the shapes are also
+ * staggered by a hash of their owner and name, so the rounding steps of the slices and the
+ * small shapes that fit into a single slice do not all fall on the same tick. While the server is under load, the
+ * {@link RenderThrottle} lengthens the cycle and shrinks the particle budget.
+ * <p>
+ * The particles sent per tick are capped by a server-wide budget. When the slices of a tick
+ * exceed it, the budget is shared evenly between the owners of the shapes, starting with a
+ * different owner every tick. Slices that did not fit are caught up in later ticks of the same
+ * cycle if the budget allows it and are skipped otherwise.
+ * <p>
+ * On Paper the slices are drawn directly by the render thread. On Folia it only budgets them;
+ * the slices of each tick are batched by the chunk at the center of their shape and drawn by a
+ * task on the region that owns that chunk, so drawing runs in parallel on the region threads
+ * and every world access happens on the thread that owns it. The batches and their slices are
+ * kept from tick to tick, so a steady frame sends its batches without allocating. A region that
+ * is still drawing its previous batch skips the slices of the current tick.
+ *
+ * @author Silas Hörz
+ * @version 1.0
+ */
+package de.roundthing;
+
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+public class ShapeRenderer implements Runnable {
+
+    private static final long TICK_MILLIS = 50;
+
+    private final RoundThing plugin;
+    private final boolean regionized;
+    private volatile RenderFrame frame = RenderFrame.EMPTY; // The latest frame of the producer
+    private RenderFrame cycleFrame = null; // The frame drawn in the current cycle
+    private final List<OwnerJobs> owners = new ArrayList<>();
+    // Reused between ticks, so a steady render cycle does not allocate new collections
+    private final List<OwnerJobs> pending = new ArrayList<>();
+    // Folia only: the batches of the chunks at the centers of the current frame's shapes, and those that got slices in this tick
+    private Map<RegionBatch, RegionBatch> regionBatches = new HashMap<>();
+    private final List<RegionBatch> filledBatches = new ArrayList<>();
+    private volatile ScheduledExecutorService executor;
+    private int phase = 0;
+    private int roundRobinStart = 0;
+
+    public ShapeRenderer(RoundThing plugin) {
+        this.plugin = plugin;
+        this.regionized = plugin.isFoliaServer();
+    }
+
+    /**
+     * Starts the render thread. It first runs after one second and then once per tick.
+     */
+    public void start() {
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "RoundThing-Render");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(() -> {
+            // An exception would cancel all further runs, so it is only logged
+            try {
+                run();
+            } catch (RuntimeException e) {
+                plugin.getLogger().log(Level.SEVERE, "Could not render the shapes.", e);
+            }
+        }, 20 * TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs a task on the render thread between two ticks, like work that would hold up the server thread.
+     * Before the render thread has started or after it has stopped, the task runs on the calling thread.
+     */
+    public void execute(Runnable task) {
+        ScheduledExecutorService executor = this.executor;
+        if (executor != null) {
+            try {
+                executor.execute(() -> {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        plugin.getLogger().log(Level.SEVERE, "Could not run a task on the render thread.", e);
+                    }
+                });
+                return;
+            } catch (RejectedExecutionException e) {
+                // Shut down, so the task runs here
+            }
+        }
+        task.run();
+    }
+
+    /**
+     * Stops the render thread.
+     */
+    public void shutdown() {
+        if (executor != null) executor.shutdownNow();
+    }
+
+    /**
+     * @return The latest frame, which is drawn from the start of the next cycle on.
+     */
+    public RenderFrame getFrame() {
+        return frame;
+    }
+
+    public void publish(RenderFrame frame) {
+        this.frame = frame;
+    }
+
+    @Override
+    public synchronized void run() {
+        RenderThrottle throttle = plugin.getRenderThrottle();
+        int refreshTicks = throttle.getRefreshTicks();
+        if (phase >= refreshTicks) phase = 0; // The refresh cycle was shortened by a reload or by the throttle
+        if (phase == 0) startCycle(refreshTicks);
+
+        drawSlice(refreshTicks, throttle.getParticlesPerTick());
+        if (regionized) dispatchRegionBatches();
+        phase = (phase + 1) % refreshTicks;
+    }
+
+    /**
+     * Switches to the latest frame if it has changed. An unchanged frame keeps its jobs, which rewind on their own.
+     */
+    private void startCycle(int refreshTicks) {
+        RenderFrame latest = frame;
+        if (latest == cycleFrame) return;
+
+        owners.clear();
+        Map<RegionBatch, RegionBatch> batches = new HashMap<>();
+        for (List<RenderFrame.Job> frameJobs : latest.getJobsByOwner()) {
+            OwnerJobs ownerJobs = new OwnerJobs();
+            for (RenderFrame.Job job : frameJobs) {
+                DrawJob drawJob = new DrawJob(job);
+                if (regionized) drawJob.batch = findRegionBatch(drawJob.shape, batches);
+                // A job joining in the middle of its own cycle starts with the slice that is due now
+                drawJob.cursor = (int) ((long) drawJob.total * drawJob.phase(0, refreshTicks) / refreshTicks);
+                ownerJobs.jobs.add(drawJob);
+            }
+            owners.add(ownerJobs);
+        }
+        // Batches of chunks without shapes are dropped; every batch was dispatched at the end of the last tick
+        if (regionized) regionBatches = batches;
+        cycleFrame = latest;
+    }
+
+    /**
+     * @return The batch of the chunk at the center of the shape, reusing the batch of the previous frame if there was one.
+     */
+    private RegionBatch findRegionBatch(ParticleShape shape, Map<RegionBatch, RegionBatch> batches) {
+        // (min + max) >> 5 is the chunk of the center of the bounding box
+        RegionBatch key = new RegionBatch(shape.getWorld(), (shape.getMinX() + shape.getMaxX()) >> 5, (shape.getMinZ() + shape.getMaxZ()) >> 5);
+        RegionBatch batch = batches.get(key);
+        if (batch == null) {
+            batch = regionBatches.getOrDefault(key, key);
+            batches.put(batch, batch);
+        }
+        return batch;
+    }
+
+    /**
+     * Draws the slices due in the current tick, within the particle budget.
+     * @param budget The maximum number of particles sent in this tick, or 0 for no limit.
+     */
+    private void drawSlice(int refreshTicks, long budget) {
+        pending.clear();
+        long demand = 0;
+        for (int i = 0; i < owners.size(); i++) {
+            OwnerJobs ownerJobs = owners.get(i);
+            ownerJobs.updateTargets(phase, refreshTicks);
+            if (ownerJobs.demand > 0) {
+                pending.add(ownerJobs);
+                demand += ownerJobs.demand;
+            }
+        }
+        if (pending.isEmpty()) return;
+
+        if (budget <= 0 || demand <= budget) {
+            for (int i = 0; i < pending.size(); i++) draw(pending.get(i), Long.MAX_VALUE);
+            pending.clear();
+            return;
+        }
+
+        // Over budget: every owner gets an equal share, and what an owner does not need is shared again among the rest
+        int start = roundRobinStart++ % pending.size();
+        while (budget > 0 && !pending.isEmpty()) {
+            long share = Math.max(1, budget / pending.size());
+            for (int i = 0; i < pending.size() && budget > 0; i++) {
+                OwnerJobs ownerJobs = pending.get((start + i) % pending.size());
+                budget -= draw(ownerJobs, Math.min(share, budget));
+            }
+            pending.removeIf(ownerJobs -> ownerJobs.demand <= 0);
+            start = 0;
+        }
+        pending.clear();
+    }
+
+    /**
+     * Draws the due slices of an owner's jobs until the allowance is used up. Each job draws at least one voxel,
+     * so the allowance may be exceeded by the viewers of a single voxel.
+     * @return The number of particles sent.
+     */
+    private long draw(OwnerJobs ownerJobs, long allowance) {
+        long sent = 0;
+        List<DrawJob> jobs = ownerJobs.jobs;
+        for (int i = 0; i < jobs.size(); i++) {
+            DrawJob job = jobs.get(i);
+            if (sent >= allowance) break;
+            int due = job.target - job.cursor;
+            if (due <= 0) continue;
+            int count = (int) Math.min(due, Math.max(1, (allowance - sent) / job.viewers.size()));
+            if (regionized) {
+                addToRegionBatch(job, job.cursor, job.cursor + count);
+            } else {
+                job.shape.draw(job.viewers, job.tier, job.cursor, job.cursor + count);
+            }
+            job.cursor += count;
+            sent += (long) count * job.viewers.size();
+        }
+        ownerJobs.demand -= sent;
+        return sent;
+    }
+
+    private void addToRegionBatch(DrawJob job, int from, int to) {
+        RegionBatch batch = job.batch;
+        if (batch.filling == null) {
+            // Created on first use, as the lookups of a new frame create batches only to compare them
+            batch.filling = new SliceList();
+            batch.drawn = new SliceList();
+        }
+        if (batch.filling.isEmpty()) filledBatches.add(batch);
+        batch.filling.add(job, from, to);
+    }
+
+    /**
+     * Hands the batched slices of this tick to the regions that own them.
+     */
+    private void dispatchRegionBatches() {
+        for (int i = 0; i < filledBatches.size(); i++) {
+            RegionBatch batch = filledBatches.get(i);
+            // The region has not drawn the previous batch yet, so it is behind and its slices of this tick are skipped
+            if (batch.drawing) {
+                batch.filling.clear();
+                continue;
+            }
+            batch.drawing = true;
+            SliceList filled = batch.filling;
+            batch.filling = batch.drawn;
+            batch.drawn = filled;
+            Bukkit.getRegionScheduler().execute(plugin, batch.world, batch.chunkX, batch.chunkZ, batch);
+        }
+        filledBatches.clear();
+    }
+
+    /**
+     * The draw jobs of all shapes of one owner in the current cycle.
+     */
+    private static final class OwnerJobs {
+        private final List<DrawJob> jobs = new ArrayList<>();
+        private long demand; // The particles still due in this tick
+
+        private void updateTargets(int phase, int refreshTicks) {
+            demand = 0;
+            for (int i = 0; i < jobs.size(); i++) {
+                DrawJob job = jobs.get(i);
+                int jobPhase = job.phase(phase, refreshTicks);
+                if (jobPhase == 0) job.cursor = 0; // The job starts its own cycle
+                job.target = (int) ((long) job.total * (jobPhase + 1) / refreshTicks);
+                // A longer cycle after a change by the throttle can leave the cursor ahead of the target
+                demand += (long) Math.max(0, job.target - job.cursor) * job.viewers.size();
+            }
+        }
+
+    }
+
+    /**
+     * A job of the current frame and how far it has been drawn in its own cycle. Each job starts
+     * its cycle at a different tick, offset by the stagger of its shape.
+     */
+    private static final class DrawJob {
+        private final ParticleShape shape;
+        private final int tier;
+        private final List<Player> viewers;
+        private final int total;
+        private final int stagger;
+        private RegionBatch batch; // Folia only: the batch its slices are drawn in
+        private int cursor = 0; // The voxels before the cursor have been drawn in this cycle
+        private int target = 0; // The voxels before the target are due by the end of this tick
+
+        private DrawJob(RenderFrame.Job job) {
+            this.shape = job.getShape();
+            this.tier = job.getTier();
+            this.viewers = job.getViewers();
+            this.total = shape.getTierParticleCount(tier);
+            this.stagger = job.getStagger();
+        }
+
+        /**
+         * @return The tick within the job's own cycle that corresponds to the given tick of the renderer's cycle.
+         */
+        private int phase(int phase, int refreshTicks) {
+            return Math.floorMod(phase - stagger, refreshTicks);
+        }
+    }
+
+    /**
+     * A range of voxels of a draw job, waiting to be drawn on its region.
+     */
+    private static final class Slice {
+        private DrawJob job;
+        private int from, to;
+    }
+
+    /**
+     * A list of slices that keeps its slice objects when it is cleared, so they are reused by the next tick.
+     */
+    private static final class SliceList {
+        private Slice[] slices = new Slice[4];
+        private int size = 0;
+
+        private boolean isEmpty() {
+            return size == 0;
+        }
+
+        private void add(DrawJob job, int from, int to) {
+            if (size == slices.length) slices = Arrays.copyOf(slices, size * 2);
+            Slice slice = slices[size];
+            if (slice == null) slice = slices[size] = new Slice();
+            slice.job = job;
+            slice.from = from;
+            slice.to = to;
+            size++;
+        }
+
+        private void clear() {
+            for (int i = 0; i < size; i++) slices[i].job = null; // Old frames are not kept alive by their slices
+            size = 0;
+        }
+    }
+
+    /**
+     * The slices of one chunk, drawn by a task on the region that owns it. The render thread fills one
+     * list while the region draws the other, and they are swapped when the batch is dispatched.
+     * Batches are equal if they belong to the same chunk.
+     */
+    private static final class RegionBatch implements Runnable {
+        private final World world;
+        private final int chunkX, chunkZ;
+        private SliceList filling; // Only used by the render thread
+        private SliceList drawn; // Only used by the region while drawing is set
+        private volatile boolean drawing = false; // Only set by the render thread and only cleared by the region
+
+        private RegionBatch(World world, int chunkX, int chunkZ) {
+            this.world = world;
+            this.chunkX = chunkX;
+            this.chunkZ = chunkZ;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int i = 0; i < drawn.size; i++) {
+                    Slice slice = drawn.slices[i];
+                    slice.job.shape.draw(slice.job.viewers, slice.job.tier, slice.from, slice.to);
+                }
+            } finally {
+                drawn.clear();
+                drawing = false;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof RegionBatch)) return false;
+            RegionBatch other = (RegionBatch) o;
+            return world.equals(other.world) && chunkX == other.chunkX && chunkZ == other.chunkZ;
+        }
+
+        @Override
+        public int hashCode() {
+            return (world.hashCode() * 31 + chunkX) * 31 + chunkZ;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ * Merges the overlapping shapes of a player, so voxels shared by several of them are drawn
+ * only once. Every shared voxel is drawn by the shape with the highest priority: lines before
+ * circles before spheres, smaller shapes before larger ones of the same kind, and otherwise by
+ * name. Each shape is then drawn as a part that leaves out the voxels taken by shapes of higher
+ * priority, and the player's budget counts every voxel of the union once.
+ * <p>
+ * Only shapes whose bounding boxes overlap can share voxels, so the union is counted for every
+ * group of overlapping shapes on its own, with the voxels packed relative to the group's corner.
+ *
+ * @author Silas Hörz
+ * @version 1.0
+ */
+package de.roundthing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public final class ShapeUnion {
+
+    private ShapeUnion() {
+    }
+
+    /**
+     * @return The number of distinct voxels covered by the shapes, in all worlds.
+     */
+    public static long countUnion(Collection<? extends ParticleShape> shapes) {
+        long count = 0;
+        for (List<ParticleShape> group : overlappingGroups(shapes)) count += countGroup(group);
+        return count;
+    }
+
+    /**
+     * @return The shapes split into groups, so that shapes of different groups never have overlapping bounding boxes.
+     */
+    private static Collection<List<ParticleShape>> overlappingGroups(Collection<? extends ParticleShape> shapes) {
+        ParticleShape[] all = shapes.toArray(new ParticleShape[0]);
+        // Union-find over the indices of the shapes
+        int[] parent = new int[all.length];
+        for (int i = 0; i < all.length; i++) parent[i] = i;
+        for (int i = 0; i < all.length; i++) {
+            for (int j = i + 1; j < all.length; j++) {
+                if (boundsOverlap(all[i], all[j])) parent[root(parent, i)] = root(parent, j);
+            }
+        }
+
+        Map<Integer, List<ParticleShape>> groups = new HashMap<>();
+        for (int i = 0; i < all.length; i++) {
+            groups.computeIfAbsent(root(parent, i), root -> new ArrayList<>()).add(all[i]);
+        }
+        return groups.values();
+    }
+
+    private static int root(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]]; // Halves the path on the way up
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static boolean boundsOverlap(ParticleShape a, ParticleShape b) {
+        return a.getWorld() == b.getWorld()
+                && a.getMinX() <= b.getMaxX() && b.getMinX() <= a.getMaxX()
+                && a.getMinY() <= b.getMaxY() && b.getMinY() <= a.getMaxY()
+                && a.getMinZ() <= b.getMaxZ() && b.getMinZ() <= a.getMaxZ();
+    }
+
+    /**
+     * @return The number of distinct voxels of a group of shapes in the same world.
+     */
+    private static long countGroup(List<ParticleShape> group) {
+        long total = 0;
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+        long maxX = Long.MIN_VALUE, maxY = Long.MIN_VALUE, maxZ = Long.MIN_VALUE;
+        for (ParticleShape shape : group) {
+            total += shape.getParticleCount();
+            minX = Math.min(minX, shape.getMinX());
+            minY = Math.min(minY, shape.getMinY());
+            minZ = Math.min(minZ, shape.getMinZ());
+            maxX = Math.max(maxX, shape.getMaxX());
+            maxY = Math.max(maxY, shape.getMaxY());
+            maxZ = Math.max(maxZ, shape.getMaxZ());
+        }
+        // A group too large to pack is charged in full, which never undercounts
+        if (group.size() == 1 || maxX - minX > VoxelBuffer.MAX_PACKED_SPAN
+                || maxY - minY > VoxelBuffer.MAX_PACKED_SPAN || maxZ - minZ > VoxelBuffer.MAX_PACKED_SPAN) return total;
+
+        long[] voxels = new long[(int) total];
+        int[] size = {0};
+        for (ParticleShape shape : group) {
+            int offsetX = shape.getOriginX() - minX, offsetY = shape.getOriginY() - minY, offsetZ = shape.getOriginZ() - minZ;
+            shape.forEachVoxel((x, y, z) -> voxels[size[0]++] = VoxelBuffer.pack(offsetX + x, offsetY + y, offsetZ + z));
+        }
+        Arrays.sort(voxels, 0, size[0]);
+        long count = 0;
+        for (int i = 0; i < size[0]; i++) {
+            if (i == 0 || voxels[i] != voxels[i - 1]) count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return Whether the first shape takes the shared voxels of both.
+     */
+    public static boolean hasPriority(ParticleShape shape, String name, ParticleShape other, String otherName) {
+        int kind = kindRank(shape), otherKind = kindRank(other);
+        if (kind != otherKind) return kind < otherKind;
+        if (shape.getParticleCount() != other.getParticleCount()) return shape.getParticleCount() < other.getParticleCount();
+        int byName = name.compareTo(otherName);
+        // Two shapes of the same owner never share a kind and a name, so identity only decides between equal copies
+        return byName != 0 ? byName < 0 : System.identityHashCode(shape) < System.identityHashCode(other);
+    }
+
+    /**
+     * @return The part of the shape left after removing the voxels of the given shapes of higher priority,
+     *         or the shape itself if none of its voxels is removed.
+     */
+    public static ParticleShape subtract(ParticleShape shape, List<ParticleShape> higherPriority) {
+        if (higherPriority.isEmpty()) return shape;
+        int originX = shape.getOriginX(), originY = shape.getOriginY(), originZ = shape.getOriginZ();
+        int minX = shape.getMinX(), minY = shape.getMinY(), minZ = shape.getMinZ();
+        int maxX = shape.getMaxX(), maxY = shape.getMaxY(), maxZ = shape.getMaxZ();
+
+        // Only the voxels of the other shapes inside this shape's bounding box can be shared
+        int total = 0;
+        for (ParticleShape other : higherPriority) total += other.getParticleCount();
+        long[] taken = new long[total];
+        int[] size = {0};
+        for (ParticleShape other : higherPriority) {
+            int otherX = other.getOriginX(), otherY = other.getOriginY(), otherZ = other.getOriginZ();
+            other.forEachVoxel((x, y, z) -> {
+                int worldX = otherX + x, worldY = otherY + y, worldZ = otherZ + z;
+                if (worldX < minX || worldX > maxX || worldY < minY || worldY > maxY || worldZ < minZ || worldZ > maxZ) return;
+                taken[size[0]++] = VoxelBuffer.pack(worldX - originX, worldY - originY, worldZ - originZ);
+            });
+        }
+        if (size[0] == 0) return shape;
+        Arrays.sort(taken, 0, size[0]);
+
+        VoxelBuffer.Builder builder = new VoxelBuffer.Builder();
+        int[] removed = {0};
+        shape.forEachVoxel((x, y, z) -> {
+            if (Arrays.binarySearch(taken, 0, size[0], VoxelBuffer.pack(x, y, z)) >= 0) {
+                removed[0]++;
+            } else {
+                builder.add(x, y, z);
+            }
+        });
+        return removed[0] == 0 ? shape : new Part(shape, builder.build());
+    }
+
+    private static int kindRank(ParticleShape shape) {
+        if (shape instanceof ParticleLine) return 0;
+        if (shape instanceof ParticleCircle) return 1;
+        return 2;
+    }
+
+    /**
+     * The voxels of a shape that are not taken by shapes of higher priority. It has the origin
+     * and color of its shape and is only used for drawing.
+     */
+    private static final class Part extends ParticleShape {
+        private final VoxelBuffer voxels;
+
+        private Part(ParticleShape shape, VoxelBuffer voxels) {
+            super(shape.getWorld(), shape.getOriginX(), shape.getOriginY(), shape.getOriginZ(), shape.getColor());
+            this.voxels = voxels;
+            setBounds(voxels.getMinX(), voxels.getMinY(), voxels.getMinZ(), voxels.getMaxX(), voxels.getMaxY(), voxels.getMaxZ());
+        }
+
+        @Override
+        public void forEachVoxel(VoxelVisitor visitor, int tier, int from, int to) {
+            voxels.forEach(visitor, from, Math.min(to, voxels.getTierSize(tier)));
+        }
+
+        @Override
+        public int getParticleCount() {
+            return voxels.size();
+        }
+
+        @Override
+        public int getTierParticleCount(int tier) {
+            return voxels.getTierSize(tier);
+        }
+    }
+}
@@ -60,7 +60,10 @@ public class SphereCommand implements CommandExecutor {
         try {
             String name = args[1];
             double diameter = Double.parseDouble(args[2]);
-            UUID uuid = player.getUniqueId();
+            if (!(diameter > 0)) {
+                localeManager.sendMessage(player, "invalid_diameter");
+                return;
+            }
             Location center = player.getLocation();
             int thickness = 1;
             Color color = Color.LIME;
@@ -83,35 +86,24 @@ public class SphereCommand implements CommandExecutor {
                 }
             }
 
-            // Particle Budget Check
-            ParticleSphere testSphere = new ParticleSphere(center, diameter, thickness, color);
-            int newParticleCount = testSphere.getParticleCount();
-            RoundThing.PlayerShapes playerShapes = plugin.getPlayerShapes(uuid);
-
-            int oldParticleCount = 0;
-            if (playerShapes.spheres.containsKey(name)) {
-                oldParticleCount = playerShapes.spheres.get(name).getParticleCount();
-            }
-
-            if (playerShapes.currentParticleCount - oldParticleCount + newParticleCount > plugin.getParticleLimit()) {
-                localeManager.sendMessage(player, "budget_exceeded",
-                        "%new%", String.valueOf(newParticleCount),
-                        "%current%", String.valueOf(playerShapes.currentParticleCount - oldParticleCount),
-                        "%limit%", String.valueOf(plugin.getParticleLimit())
-                );
-                return;
-            }
-
-            playerShapes.spheres.put(name, testSphere);
-            playerShapes.currentParticleCount = playerShapes.currentParticleCount - oldParticleCount + newParticleCount;
-            plugin.savePlayerData(uuid);
-            localeManager.sendMessage(player, "sphere_success", "%name%", name);
+            createSphere(player, name, center, diameter, thickness, color);
 
         } catch (NumberFormatException e) {
             localeManager.sendMessage(player, "invalid_number");
         }
     }
 
+    /**
+     * Hands the sphere over to the creation pipeline, which checks the particle budget,
+     * rasterizes the sphere off the command thread and commits it once it is ready.
+     */
+    private void createSphere(Player player, String name, Location center, double diameter, int thickness, Color color) {
+        plugin.getCreationPipeline().submit(player, name, shapes -> shapes.spheres,
+                maxParticles -> ParticleSphere.countParticles(diameter, thickness),
+                () -> new ParticleSphere(center, diameter, thickness, color),
+                "sphere_success");
+    }
+
     private void handleDelete(Player player, String[] args) {
         if (args.length != 2) {
             sendHelpMessage(player);
@@ -127,8 +119,9 @@ public class SphereCommand implements CommandExecutor {
                 localeManager.sendMessage(player, "sphere_list_empty");
                 return;
             }
-            playerShapes.currentParticleCount -= playerSpheres.values().stream().mapToInt(ParticleSphere::getParticleCount).sum();
+            playerSpheres.values().forEach(plugin.getShapeIndex()::remove);
             playerSpheres.clear();
+            plugin.recountParticles(playerShapes);
             localeManager.sendMessage(player, "sphere_deleted_all");
         } else {
             ParticleSphere removedSphere = playerSpheres.remove(name);
@@ -136,7 +129,8 @@ public class SphereCommand implements CommandExecutor {
                 localeManager.sendMessage(player, "sphere_not_found");
                 return;
             } else {
-                playerShapes.currentParticleCount -= removedSphere.getParticleCount();
+                plugin.recountParticles(playerShapes);
+                plugin.getShapeIndex().remove(removedSphere);
                 localeManager.sendMessage(player, "sphere_deleted", "%name%", name);
             }
         }
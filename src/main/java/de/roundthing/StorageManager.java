@@ -1,6 +1,15 @@
 /**
- * Manages the persistence of player shape data by saving to and loading from YAML files.
- * Each player's data is stored in a separate file named after their UUID.
+ * Manages the persistence of player shape data by saving to and loading from binary files in the
+ * {@link BinaryShapeFormat}. Each player's data is stored in a separate file named after their UUID.
+ * Players whose data is still in the YAML files of earlier versions are migrated when their data is
+ * first loaded: the binary file is written and the YAML file is kept as a backup next to it. For
+ * debugging, the shapes of a player can be exported to YAML again.
+ * <p>
+ * Saving is write-behind: a save only takes a snapshot of the player's shapes and queues it for
+ * a dedicated I/O thread, so commands never wait for the disk. Saves that are queued for the same
+ * player before the I/O thread gets to them are coalesced, and only the latest snapshot is
+ * written. Loading sees the queued snapshots, so a player who rejoins before their file has been
+ * written gets their latest shapes.
  *
  * @author Silas Hörz
  * @version 1.0
@@ -17,13 +26,32 @@ import org.bukkit.configuration.file.YamlConfiguration;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class StorageManager {
 
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10; // How long shutting down waits for the queued saves
+
     private final RoundThing plugin;
     private final File dataFolder;
+    private final ExecutorService writer;
+    // The latest snapshot of every player whose file has not been written yet
+    private final Map<UUID, ShapeSnapshot> pending = new ConcurrentHashMap<>();
 
     public StorageManager(RoundThing plugin) {
         this.plugin = plugin;
@@ -31,14 +59,252 @@ public class StorageManager {
         if (!dataFolder.exists()) {
             dataFolder.mkdirs();
         }
+        this.writer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "RoundThing-Storage");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * The shapes of a player at the time a save was requested. The shapes themselves are immutable,
+     * so only the maps are copied.
+     */
+    private static final class ShapeSnapshot {
+        private final Map<String, ParticleCircle> circles;
+        private final Map<String, ParticleSphere> spheres;
+        private final Map<String, ParticleLine> lines;
+
+        private ShapeSnapshot(RoundThing.PlayerShapes shapes) {
+            this.circles = Collections.unmodifiableMap(new LinkedHashMap<>(shapes.circles));
+            this.spheres = Collections.unmodifiableMap(new LinkedHashMap<>(shapes.spheres));
+            this.lines = Collections.unmodifiableMap(new LinkedHashMap<>(shapes.lines));
+        }
+    }
+
+    /**
+     * Builds the stored shapes of a player. Each shape is checked on its own: shapes in worlds that are not loaded
+     * are skipped, and so are shapes with values the shapes reject, like a circle without a diameter that earlier
+     * versions accepted. Such a shape is logged and the others are loaded.
+     */
+    private final class ShapeLoader implements BinaryShapeFormat.ShapeVisitor {
+        private final UUID playerUUID;
+        private final RoundThing.PlayerShapes shapes;
+        private final Map<String, World> worlds = new HashMap<>();
+
+        private ShapeLoader(UUID playerUUID, RoundThing.PlayerShapes shapes) {
+            this.playerUUID = playerUUID;
+            this.shapes = shapes;
+        }
+
+        @Override
+        public void circle(String name, String worldName, double x, double y, double z, double diameter, int thickness, int color, double rotationX, double rotationZ) {
+            World world = getWorld(worldName);
+            if (world == null) return;
+            try {
+                shapes.circles.put(name, new ParticleCircle(new Location(world, x, y, z), diameter, thickness, Color.fromRGB(color), rotationX, rotationZ));
+            } catch (IllegalArgumentException e) {
+                skip("circle", name, e);
+            }
+        }
+
+        @Override
+        public void sphere(String name, String worldName, double x, double y, double z, double diameter, int thickness, int color) {
+            World world = getWorld(worldName);
+            if (world == null) return;
+            try {
+                shapes.spheres.put(name, new ParticleSphere(new Location(world, x, y, z), diameter, thickness, Color.fromRGB(color)));
+            } catch (IllegalArgumentException e) {
+                skip("sphere", name, e);
+            }
+        }
+
+        @Override
+        public void line(String name, String worldName, double startX, double startY, double startZ, double endX, double endY, double endZ, int color) {
+            World world = getWorld(worldName);
+            if (world == null) return;
+            try {
+                shapes.lines.put(name, new ParticleLine(new Location(world, startX, startY, startZ), new Location(world, endX, endY, endZ), Color.fromRGB(color)));
+            } catch (IllegalArgumentException e) {
+                skip("line", name, e);
+            }
+        }
+
+        private World getWorld(String worldName) {
+            return worldName != null ? worlds.computeIfAbsent(worldName, Bukkit::getWorld) : null;
+        }
+
+        private void skip(String type, String name, IllegalArgumentException e) {
+            plugin.getLogger().warning("Skipped the invalid " + type + " '" + name + "' of player " + playerUUID + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes decoded shapes to a YAML configuration, with the same keys as the YAML files of earlier versions.
+     */
+    private static final class YamlExport implements BinaryShapeFormat.ShapeVisitor {
+        private final FileConfiguration config;
+
+        private YamlExport(FileConfiguration config) {
+            this.config = config;
+        }
+
+        @Override
+        public void circle(String name, String world, double x, double y, double z, double diameter, int thickness, int color, double rotationX, double rotationZ) {
+            String path = "circles." + name;
+            config.set(path + ".world", world);
+            config.set(path + ".x", x);
+            config.set(path + ".y", y);
+            config.set(path + ".z", z);
+            config.set(path + ".diameter", diameter);
+            config.set(path + ".thickness", thickness);
+            config.set(path + ".color", color);
+            config.set(path + ".rotX", rotationX);
+            config.set(path + ".rotZ", rotationZ);
+        }
+
+        @Override
+        public void sphere(String name, String world, double x, double y, double z, double diameter, int thickness, int color) {
+            String path = "spheres." + name;
+            config.set(path + ".world", world);
+            config.set(path + ".x", x);
+            config.set(path + ".y", y);
+            config.set(path + ".z", z);
+            config.set(path + ".diameter", diameter);
+            config.set(path + ".thickness", thickness);
+            config.set(path + ".color", color);
+        }
+
+        @Override
+        public void line(String name, String world, double startX, double startY, double startZ, double endX, double endY, double endZ, int color) {
+            String path = "lines." + name;
+            config.set(path + ".world", world);
+            config.set(path + ".start.x", startX);
+            config.set(path + ".start.y", startY);
+            config.set(path + ".start.z", startZ);
+            config.set(path + ".end.x", endX);
+            config.set(path + ".end.y", endY);
+            config.set(path + ".end.z", endZ);
+            config.set(path + ".color", color);
+        }
     }
 
     /**
-     * Saves all shapes (circles, spheres, lines) for a specific player to their data file.
-     * This is an atomic operation that overwrites the file with the current in-memory state.
+     * Queues a save of all shapes (circles, spheres, lines) of a specific player. The file is overwritten
+     * with the shapes as they are now, on the I/O thread. A save that is still queued for the player
+     * is replaced instead of writing the file twice.
      */
     public void savePlayerShapes(UUID playerUUID, RoundThing.PlayerShapes shapes) {
-        File playerFile = new File(dataFolder, playerUUID.toString() + ".yml");
+        ShapeSnapshot snapshot = new ShapeSnapshot(shapes);
+        if (pending.put(playerUUID, snapshot) != null) return; // The queued write will pick up the new snapshot
+        if (writer.isShutdown()) {
+            writePending(playerUUID);
+        } else {
+            writer.execute(() -> writePending(playerUUID));
+        }
+    }
+
+    /**
+     * Waits up to a bounded time for all queued saves to be written and stops the I/O thread.
+     * Runs when the plugin is disabled, after the last saves have been queued.
+     */
+    public void shutdown() {
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                plugin.getLogger().severe("Timed out writing player data. " + pending.size() + " player file(s) were not saved: " + pending.keySet());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            plugin.getLogger().severe("Interrupted while writing player data. " + pending.size() + " player file(s) may not have been saved.");
+        }
+    }
+
+    /**
+     * Writes the latest snapshot of the player until no newer one is queued. The snapshot stays
+     * visible to loading until it is on disk.
+     */
+    private void writePending(UUID playerUUID) {
+        ShapeSnapshot snapshot;
+        while ((snapshot = pending.get(playerUUID)) != null) {
+            writePlayerFile(playerUUID, snapshot);
+            if (pending.remove(playerUUID, snapshot)) return;
+        }
+    }
+
+    private void writePlayerFile(UUID playerUUID, ShapeSnapshot shapes) {
+        Path playerFile = getBinaryFile(playerUUID);
+        try {
+            writeBinary(playerFile, BinaryShapeFormat.encode(shapes.circles, shapes.spheres, shapes.lines));
+            // Once the binary file exists, a YAML file left from before the migration is only kept as a backup
+            File yamlFile = getYamlFile(playerUUID);
+            if (yamlFile.exists()) {
+                Files.move(yamlFile.toPath(), new File(dataFolder, yamlFile.getName() + ".migrated").toPath(), StandardCopyOption.REPLACE_EXISTING);
+                plugin.getLogger().info("Migrated data for player " + playerUUID + " to the binary format.");
+            }
+        } catch (IOException | RuntimeException e) {
+            // The snapshot is dropped either way, so a broken file never blocks later saves of the player
+            plugin.getLogger().severe("Could not save data for player " + playerUUID);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes the shapes of a loaded player to a YAML file in the export folder, in the format of earlier versions.
+     * @return The written file.
+     */
+    public File exportToYaml(UUID playerUUID, RoundThing.PlayerShapes shapes) throws IOException {
+        return writeExport(playerUUID, createYaml(new ShapeSnapshot(shapes)));
+    }
+
+    /**
+     * Writes the stored shapes of a player who is not loaded to a YAML file in the export folder. The player
+     * data is only read: a queued save is exported as it will be written, a binary file is decoded without
+     * building its shapes, and a YAML file of earlier versions that has not been migrated is exported as it is.
+     * Unlike loading, this keeps the shapes in worlds that are not loaded.
+     * @return The written file, or null if no data is stored or queued for the player.
+     * @throws IOException If the binary file is corrupted, or the export cannot be written.
+     */
+    public File exportStoredShapes(UUID playerUUID) throws IOException {
+        ShapeSnapshot snapshot = pending.get(playerUUID);
+        if (snapshot != null) return writeExport(playerUUID, createYaml(snapshot));
+
+        Path binaryFile = getBinaryFile(playerUUID);
+        if (Files.exists(binaryFile)) {
+            FileConfiguration config = new YamlConfiguration();
+            BinaryShapeFormat.decode(readBinary(binaryFile), new YamlExport(config));
+            return writeExport(playerUUID, config);
+        }
+
+        File yamlFile = getYamlFile(playerUUID);
+        if (yamlFile.exists()) return writeExport(playerUUID, YamlConfiguration.loadConfiguration(yamlFile));
+        return null;
+    }
+
+    /**
+     * @return The number of shapes in an exported file.
+     */
+    public static int countExportedShapes(File exportFile) {
+        FileConfiguration config = YamlConfiguration.loadConfiguration(exportFile);
+        int count = 0;
+        for (String type : new String[]{"circles", "spheres", "lines"}) {
+            ConfigurationSection section = config.getConfigurationSection(type);
+            if (section != null) count += section.getKeys(false).size();
+        }
+        return count;
+    }
+
+    private File writeExport(UUID playerUUID, FileConfiguration config) throws IOException {
+        File exportFolder = new File(plugin.getDataFolder(), "export");
+        if (!exportFolder.exists()) {
+            exportFolder.mkdirs();
+        }
+        File exportFile = new File(exportFolder, playerUUID.toString() + ".yml");
+        config.save(exportFile);
+        return exportFile;
+    }
+
+    private FileConfiguration createYaml(ShapeSnapshot shapes) {
         FileConfiguration config = new YamlConfiguration(); // Create a fresh config
 
         // Save Circles
@@ -92,40 +358,57 @@ public class StorageManager {
             }
         }
 
-        try {
-            config.save(playerFile);
-        } catch (IOException e) {
-            plugin.getLogger().severe("Could not save data for player " + playerUUID);
-            e.printStackTrace();
-        }
+        return config;
     }
 
     /**
-     * Loads all shapes for a specific player from their data file.
+     * Loads all shapes for a specific player from their data file. A YAML file of earlier versions is
+     * loaded instead if there is no binary file yet, and a save in the binary format is queued.
      * @return A PlayerShapes object containing all loaded shapes.
      */
     public RoundThing.PlayerShapes loadPlayerShapes(UUID playerUUID) {
         RoundThing.PlayerShapes shapes = new RoundThing.PlayerShapes();
-        File playerFile = new File(dataFolder, playerUUID.toString() + ".yml");
-        if (!playerFile.exists()) {
+        ShapeSnapshot snapshot = pending.get(playerUUID);
+        if (snapshot != null) {
+            // The file is outdated until the queued save has been written
+            shapes.circles.putAll(snapshot.circles);
+            shapes.spheres.putAll(snapshot.spheres);
+            shapes.lines.putAll(snapshot.lines);
             return shapes;
         }
 
+        Path binaryFile = getBinaryFile(playerUUID);
+        if (Files.exists(binaryFile)) {
+            try {
+                BinaryShapeFormat.decode(readBinary(binaryFile), new ShapeLoader(playerUUID, shapes));
+                return shapes;
+            } catch (IOException e) {
+                // Keep the broken file for inspection instead of overwriting it with the next save
+                plugin.getLogger().severe("Could not load data for player " + playerUUID + ": " + e.getMessage());
+                moveAside(binaryFile);
+                shapes = new RoundThing.PlayerShapes();
+            }
+        }
+
+        File yamlFile = getYamlFile(playerUUID);
+        if (yamlFile.exists()) {
+            loadYaml(yamlFile, new ShapeLoader(playerUUID, shapes));
+            savePlayerShapes(playerUUID, shapes); // Migrates the player to the binary format
+        }
+        return shapes;
+    }
+
+    private void loadYaml(File playerFile, BinaryShapeFormat.ShapeVisitor loader) {
         FileConfiguration config = YamlConfiguration.loadConfiguration(playerFile);
 
         // Load Circles
         ConfigurationSection circlesSection = config.getConfigurationSection("circles");
         if (circlesSection != null) {
             for (String name : circlesSection.getKeys(false)) {
-                World world = Bukkit.getWorld(circlesSection.getString(name + ".world"));
-                if (world == null) continue;
-                Location center = new Location(world, circlesSection.getDouble(name + ".x"), circlesSection.getDouble(name + ".y"), circlesSection.getDouble(name + ".z"));
-                double diameter = circlesSection.getDouble(name + ".diameter");
-                int thickness = circlesSection.getInt(name + ".thickness");
-                Color color = Color.fromRGB(circlesSection.getInt(name + ".color"));
-                double rotX = circlesSection.getDouble(name + ".rotX");
-                double rotZ = circlesSection.getDouble(name + ".rotZ");
-                shapes.circles.put(name, new ParticleCircle(center, diameter, thickness, color, rotX, rotZ));
+                loader.circle(name, circlesSection.getString(name + ".world"),
+                        circlesSection.getDouble(name + ".x"), circlesSection.getDouble(name + ".y"), circlesSection.getDouble(name + ".z"),
+                        circlesSection.getDouble(name + ".diameter"), circlesSection.getInt(name + ".thickness"), circlesSection.getInt(name + ".color"),
+                        circlesSection.getDouble(name + ".rotX"), circlesSection.getDouble(name + ".rotZ"));
             }
         }
 
@@ -133,13 +416,9 @@ public class StorageManager {
         ConfigurationSection spheresSection = config.getConfigurationSection("spheres");
         if (spheresSection != null) {
             for (String name : spheresSection.getKeys(false)) {
-                World world = Bukkit.getWorld(spheresSection.getString(name + ".world"));
-                if (world == null) continue;
-                Location center = new Location(world, spheresSection.getDouble(name + ".x"), spheresSection.getDouble(name + ".y"), spheresSection.getDouble(name + ".z"));
-                double diameter = spheresSection.getDouble(name + ".diameter");
-                int thickness = spheresSection.getInt(name + ".thickness");
-                Color color = Color.fromRGB(spheresSection.getInt(name + ".color"));
-                shapes.spheres.put(name, new ParticleSphere(center, diameter, thickness, color));
+                loader.sphere(name, spheresSection.getString(name + ".world"),
+                        spheresSection.getDouble(name + ".x"), spheresSection.getDouble(name + ".y"), spheresSection.getDouble(name + ".z"),
+                        spheresSection.getDouble(name + ".diameter"), spheresSection.getInt(name + ".thickness"), spheresSection.getInt(name + ".color"));
             }
         }
 
@@ -147,15 +426,59 @@ public class StorageManager {
         ConfigurationSection linesSection = config.getConfigurationSection("lines");
         if (linesSection != null) {
             for (String name : linesSection.getKeys(false)) {
-                World world = Bukkit.getWorld(linesSection.getString(name + ".world"));
-                if (world == null) continue;
-                Location start = new Location(world, linesSection.getDouble(name + ".start.x"), linesSection.getDouble(name + ".start.y"), linesSection.getDouble(name + ".start.z"));
-                Location end = new Location(world, linesSection.getDouble(name + ".end.x"), linesSection.getDouble(name + ".end.y"), linesSection.getDouble(name + ".end.z"));
-                Color color = Color.fromRGB(linesSection.getInt(name + ".color"));
-                shapes.lines.put(name, new ParticleLine(start, end, color));
+                loader.line(name, linesSection.getString(name + ".world"),
+                        linesSection.getDouble(name + ".start.x"), linesSection.getDouble(name + ".start.y"), linesSection.getDouble(name + ".start.z"),
+                        linesSection.getDouble(name + ".end.x"), linesSection.getDouble(name + ".end.y"), linesSection.getDouble(name + ".end.z"),
+                        linesSection.getInt(name + ".color"));
             }
         }
+    }
 
-        return shapes;
+    private Path getBinaryFile(UUID playerUUID) {
+        return dataFolder.toPath().resolve(playerUUID.toString() + BinaryShapeFormat.FILE_EXTENSION);
+    }
+
+    private File getYamlFile(UUID playerUUID) {
+        return new File(dataFolder, playerUUID.toString() + ".yml");
+    }
+
+    /**
+     * Writes the data to a temporary file first and moves it over the old one, so a crash while
+     * writing never leaves a half-written player file.
+     */
+    private static void writeBinary(Path file, ByteBuffer data) throws IOException {
+        Path temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            channel.force(false);
+        }
+        try {
+            Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static ByteBuffer readBinary(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) throw new IOException("The file is too large");
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) break; // The file shrank while reading; the checksum will catch it
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    private void moveAside(Path file) {
+        try {
+            Files.move(file, file.resolveSibling(file.getFileName() + ".corrupt"), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            plugin.getLogger().severe("Could not move the broken file " + file.getFileName() + " aside.");
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,170 @@
+/**
+ * A process-wide cache of rasterized voxel templates. Shapes with identical parameters
+ * (type, diameter, thickness and rotation) share one immutable VoxelBuffer instead of each
+ * computing their own copy. The cache is bounded and evicts the least recently used template.
+ * It also keeps the particle counts of shapes whose count is expensive, so repeated budget
+ * checks of the same shape do not count it again.
+ *
+ * @author Silas Hörz
+ * @version 1.0
+ */
+package de.roundthing;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.LongUnaryOperator;
+import java.util.function.Supplier;
+
+public final class TemplateCache {
+
+    public enum Kind { CIRCLE, SPHERE, SPHERE_SURFACE }
+
+    public static final int DEFAULT_MAX_ENTRIES = 128;
+    private static final TemplateCache INSTANCE = new TemplateCache();
+
+    private final LinkedHashMap<Key, VoxelBuffer> templates = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, VoxelBuffer> eldest) {
+            return size() > maxEntries;
+        }
+    };
+    private final LinkedHashMap<Key, Long> counts = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Long> eldest) {
+            return size() > maxEntries;
+        }
+    };
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+    private long hits = 0;
+    private long misses = 0;
+
+    private TemplateCache() {
+    }
+
+    public static TemplateCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the cached template for the given parameters, or rasterizes and caches it.
+     * The rasterizer runs outside the lock, so a slow shape never blocks other lookups.
+     * @return The shared voxel template.
+     */
+    public VoxelBuffer get(Kind kind, double diameter, int thickness, double rotationX, double rotationZ, Supplier<VoxelBuffer> rasterizer) {
+        Key key = new Key(kind, diameter, thickness, rotationX, rotationZ);
+        synchronized (this) {
+            VoxelBuffer template = templates.get(key);
+            if (template != null) {
+                hits++;
+                return template;
+            }
+            misses++;
+        }
+
+        VoxelBuffer template = rasterizer.get();
+        synchronized (this) {
+            // Another thread may have rasterized the same template in the meantime
+            VoxelBuffer existing = templates.putIfAbsent(key, template);
+            return existing != null ? existing : template;
+        }
+    }
+
+    /**
+     * Looks the template up like {@link #get}, and counts a hit or a miss the same way.
+     * @return The cached template for the given parameters, or null if it has not been rasterized.
+     */
+    public synchronized VoxelBuffer getIfPresent(Kind kind, double diameter, int thickness, double rotationX, double rotationZ) {
+        VoxelBuffer template = templates.get(new Key(kind, diameter, thickness, rotationX, rotationZ));
+        if (template != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return template;
+    }
+
+    /**
+     * Caches a template that was rasterized outside the cache, unless one is cached already.
+     */
+    public synchronized void put(Kind kind, double diameter, int thickness, double rotationX, double rotationZ, VoxelBuffer template) {
+        templates.putIfAbsent(new Key(kind, diameter, thickness, rotationX, rotationZ), template);
+    }
+
+    /**
+     * Returns the cached particle count for the given parameters, or counts and caches it.
+     * Like the rasterizer, the counter runs outside the lock. It gets maxCount and may stop
+     * once the count exceeds it; such a count is only a lower bound and is not cached.
+     */
+    public long getCount(Kind kind, double diameter, int thickness, double rotationX, double rotationZ, long maxCount, LongUnaryOperator counter) {
+        Key key = new Key(kind, diameter, thickness, rotationX, rotationZ);
+        synchronized (this) {
+            Long count = counts.get(key);
+            if (count != null) return count;
+        }
+
+        long count = counter.applyAsLong(maxCount);
+        if (count <= maxCount) {
+            synchronized (this) {
+                counts.put(key, count);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Changes the maximum number of cached templates and counts, evicting the least recently used ones if necessary.
+     */
+    public synchronized void setMaxEntries(int maxEntries) {
+        this.maxEntries = Math.max(0, maxEntries);
+        trim(templates);
+        trim(counts);
+    }
+
+    private void trim(LinkedHashMap<Key, ?> map) {
+        Iterator<? extends Map.Entry<Key, ?>> iterator = map.entrySet().iterator();
+        while (map.size() > this.maxEntries && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    public synchronized int size() { return templates.size(); }
+    public synchronized long getHits() { return hits; }
+    public synchronized long getMisses() { return misses; }
+
+    private static final class Key {
+        private final Kind kind;
+        private final double diameter;
+        private final int thickness;
+        private final double rotationX;
+        private final double rotationZ;
+
+        private Key(Kind kind, double diameter, int thickness, double rotationX, double rotationZ) {
+            this.kind = kind;
+            this.diameter = diameter;
+            this.thickness = thickness;
+            // Adding 0.0 folds -0.0 into 0.0, so both produce the same key
+            this.rotationX = rotationX + 0.0;
+            this.rotationZ = rotationZ + 0.0;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return kind == other.kind
+                    && Double.compare(diameter, other.diameter) == 0
+                    && thickness == other.thickness
+                    && Double.compare(rotationX, other.rotationX) == 0
+                    && Double.compare(rotationZ, other.rotationZ) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(kind, diameter, thickness, rotationX, rotationZ);
+        }
+    }
+}
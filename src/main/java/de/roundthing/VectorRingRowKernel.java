@@ -0,0 +1,73 @@
+/**
+ * A ring row kernel built on the incubating Vector API. It evaluates a whole vector of v
+ * columns per instruction and converts the resulting lane mask into column bits. Every
+ * operation mirrors the scalar kernel step by step (no fused multiply-add), so both kernels
+ * select identical columns.
+ * <p>
+ * This class must only be loaded if the jdk.incubator.vector module is present, see
+ * {@link RingRowKernels}.
+ *
+ * @author Silas Hörz
+ * @version 1.0
+ */
+package de.roundthing;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.util.BitSet;
+
+public final class VectorRingRowKernel implements RingRowKernel {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    private static final DoubleVector LANE_OFFSETS;
+
+    static {
+        double[] offsets = new double[SPECIES.length()];
+        for (int i = 0; i < offsets.length; i++) offsets[i] = i;
+        LANE_OFFSETS = DoubleVector.fromArray(SPECIES, offsets, 0);
+    }
+
+    @Override
+    public void markRow(int u, int scanRadius, double slopeU, double slopeV, double radius, int thickness, BitSet columns, int rowOffset) {
+        double radiusSquared = radius * radius;
+        boolean filled = thickness >= radius;
+        double rowSquared = (double) u * u;
+        double rowHeight = u * slopeU;
+        int size = 2 * scanRadius + 1;
+
+        for (int i = 0; i < size; i += SPECIES.length()) {
+            VectorMask<Double> inRange = SPECIES.indexInRange(i, size);
+            DoubleVector v = LANE_OFFSETS.add(i - scanRadius);
+            DoubleVector columnSquared = v.mul(v).add(rowSquared);
+            DoubleVector height = v.mul(slopeV).add(rowHeight);
+            DoubleVector distanceSquared = height.mul(height).add(columnSquared);
+            VectorMask<Double> hits = distanceSquared.compare(VectorOperators.LE, radiusSquared).and(inRange);
+
+            if (!filled && hits.anyTrue()) {
+                DoubleVector gradientU = height.mul(slopeU).add(u);
+                DoubleVector gradientV = height.mul(slopeV).add(v);
+                DoubleVector stretch = gradientU.mul(gradientU).add(gradientV.mul(gradientV)).div(distanceSquared).sqrt();
+                stretch = stretch.blend(1, distanceSquared.compare(VectorOperators.EQ, 0));
+                DoubleVector innerRadius = stretch.mul(thickness).neg().add(radius);
+                VectorMask<Double> insideHole = innerRadius.compare(VectorOperators.GT, 0)
+                        .and(distanceSquared.compare(VectorOperators.LT, innerRadius.mul(innerRadius)));
+                hits = hits.andNot(insideHole);
+            }
+
+            long bits = hits.toLong();
+            while (bits != 0) {
+                int lane = Long.numberOfTrailingZeros(bits);
+                columns.set(rowOffset + i + lane);
+                bits &= bits - 1;
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "SIMD (" + SPECIES.length() + " x double)";
+    }
+}
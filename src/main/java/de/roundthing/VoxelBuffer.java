@@ -0,0 +1,172 @@
+/**
+ * An immutable, compact list of block offsets produced by rasterizing a shape.
+ * The offsets are stored as consecutive x/y/z triples in a single int array, so
+ * iterating them during rendering does not allocate any objects.
+ * <p>
+ * The voxels are ordered by level of detail. Every voxel gets a level from a hash of its
+ * position, where each level holds about half as many voxels as the one below, and the
+ * highest levels come first. Detail tier k is therefore just the prefix of all voxels with
+ * a level of at least k: a stable, evenly spread subset of roughly 1 / 2^k of the shape.
+ *
+ * @author Silas Hörz
+ * @version 1.0
+ */
+package de.roundthing;
+
+import java.util.Arrays;
+
+public final class VoxelBuffer {
+
+    public static final int DETAIL_TIERS = 5; // Full detail and 1/2, 1/4, 1/8, 1/16 of the voxels
+
+    private static final int PACKED_BITS = 21;
+    private static final long PACKED_MASK = (1L << PACKED_BITS) - 1;
+    // The largest difference between two offsets on an axis for which pack still yields distinct values
+    public static final int MAX_PACKED_SPAN = (1 << PACKED_BITS) - 1;
+
+    private final int[] coords;
+    private final int size;
+    private final int[] bounds = new int[6]; // min x/y/z, max x/y/z
+    private final int[] tierSizes = new int[DETAIL_TIERS];
+
+    private VoxelBuffer(int[] data, int size) {
+        this.coords = new int[size * 3];
+        this.size = size;
+
+        // Counting sort by level, highest level first and otherwise in the order the voxels were added
+        int[] levelStarts = new int[DETAIL_TIERS + 1];
+        for (int i = 0; i < size * 3; i += 3) {
+            levelStarts[DETAIL_TIERS - 1 - level(data[i], data[i + 1], data[i + 2]) + 1]++;
+        }
+        for (int l = 1; l <= DETAIL_TIERS; l++) {
+            levelStarts[l] += levelStarts[l - 1];
+        }
+        for (int tier = 0; tier < DETAIL_TIERS; tier++) {
+            tierSizes[tier] = levelStarts[DETAIL_TIERS - tier];
+        }
+        for (int i = 0; i < size * 3; i += 3) {
+            int target = levelStarts[DETAIL_TIERS - 1 - level(data[i], data[i + 1], data[i + 2])]++ * 3;
+            coords[target] = data[i];
+            coords[target + 1] = data[i + 1];
+            coords[target + 2] = data[i + 2];
+        }
+
+        for (int axis = 0; axis < 3 && size > 0; axis++) {
+            int min = coords[axis], max = coords[axis];
+            for (int i = axis + 3; i < size * 3; i += 3) {
+                min = Math.min(min, coords[i]);
+                max = Math.max(max, coords[i]);
+            }
+            bounds[axis] = min;
+            bounds[axis + 3] = max;
+        }
+    }
+
+    /**
+     * @return The number of voxels in this buffer.
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getX(int index) { return coords[index * 3]; }
+    public int getY(int index) { return coords[index * 3 + 1]; }
+    public int getZ(int index) { return coords[index * 3 + 2]; }
+
+    // The bounding box of all voxels. An empty buffer has the bounds of the origin.
+    public int getMinX() { return bounds[0]; }
+    public int getMinY() { return bounds[1]; }
+    public int getMinZ() { return bounds[2]; }
+    public int getMaxX() { return bounds[3]; }
+    public int getMaxY() { return bounds[4]; }
+    public int getMaxZ() { return bounds[5]; }
+
+    /**
+     * @return The number of voxels drawn at the given detail tier.
+     */
+    public int getTierSize(int tier) {
+        return tierSizes[tier];
+    }
+
+    /**
+     * Passes every voxel of this buffer to the visitor.
+     */
+    public void forEach(VoxelVisitor visitor) {
+        forEach(visitor, 0);
+    }
+
+    /**
+     * Passes the voxels of the given detail tier to the visitor.
+     */
+    public void forEach(VoxelVisitor visitor, int tier) {
+        forEach(visitor, 0, tierSizes[tier]);
+    }
+
+    /**
+     * Passes the voxels [from, to) of this buffer to the visitor.
+     */
+    public void forEach(VoxelVisitor visitor, int from, int to) {
+        for (int i = from * 3, n = to * 3; i < n; i += 3) {
+            visitor.visit(coords[i], coords[i + 1], coords[i + 2]);
+        }
+    }
+
+    /**
+     * @return The level of detail of a voxel, from 0 to DETAIL_TIERS - 1. About half of the voxels of each level also reach the next one.
+     */
+    private static int level(int x, int y, int z) {
+        // The high bits of a Fibonacci hash are well mixed, so each leading zero bit halves the share of voxels
+        long hash = pack(x, y, z) * 0x9E3779B97F4A7C15L;
+        return Math.min(DETAIL_TIERS - 1, Long.numberOfLeadingZeros(hash));
+    }
+
+    /**
+     * Packs a voxel offset into a single long. Each axis is masked to 21 bits in two's complement,
+     * so negative offsets never borrow from a neighbouring field and every offset within
+     * +/- 1,048,575 blocks maps to a distinct value.
+     * @return The packed offset.
+     */
+    public static long pack(int x, int y, int z) {
+        return ((x & PACKED_MASK) << (2 * PACKED_BITS)) | ((y & PACKED_MASK) << PACKED_BITS) | (z & PACKED_MASK);
+    }
+
+    // Shifting the field to the top of the long and back restores its sign
+    public static int unpackX(long packed) { return (int) (packed << (64 - 3 * PACKED_BITS) >> (64 - PACKED_BITS)); }
+    public static int unpackY(long packed) { return (int) (packed << (64 - 2 * PACKED_BITS) >> (64 - PACKED_BITS)); }
+    public static int unpackZ(long packed) { return (int) (packed << (64 - PACKED_BITS) >> (64 - PACKED_BITS)); }
+
+    /**
+     * Collects voxel offsets while a shape is being rasterized.
+     * The builder does not deduplicate; callers are responsible for adding each voxel only once.
+     */
+    public static final class Builder {
+        private int[] data = new int[48];
+        private int length = 0;
+
+        public void add(int x, int y, int z) {
+            if (length + 3 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            data[length++] = x;
+            data[length++] = y;
+            data[length++] = z;
+        }
+
+        /**
+         * Appends all voxels of another builder, keeping their order.
+         * @return This builder.
+         */
+        public Builder addAll(Builder other) {
+            if (length + other.length > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + other.length));
+            }
+            System.arraycopy(other.data, 0, data, length, other.length);
+            length += other.length;
+            return this;
+        }
+
+        public VoxelBuffer build() {
+            return new VoxelBuffer(data, length / 3);
+        }
+    }
+}
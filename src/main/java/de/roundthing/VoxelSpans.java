@@ -0,0 +1,48 @@
+/**
+ * Span arithmetic shared by the round shapes. Instead of testing every voxel against
+ * the distance predicate, the rasterizers and particle counters ask for the extent of
+ * a whole row or column that lies between the inner and outer radius.
+ *
+ * @author Silas Hörz
+ * @version 1.0
+ */
+package de.roundthing;
+
+public final class VoxelSpans {
+
+    private VoxelSpans() {
+    }
+
+    /**
+     * @return The largest d >= 0 with offsetSquared + d² <= radiusSquared.
+     *         The caller must ensure that offsetSquared <= radiusSquared.
+     */
+    public static int outerExtent(int offsetSquared, double radiusSquared) {
+        int d = (int) Math.sqrt(radiusSquared - offsetSquared);
+        // Correct floating point rounding of the square root against the exact predicate
+        while (offsetSquared + (double) (d + 1) * (d + 1) <= radiusSquared) d++;
+        while (d > 0 && offsetSquared + (double) d * d > radiusSquared) d--;
+        return d;
+    }
+
+    /**
+     * @return The smallest d >= 0 with offsetSquared + d² >= innerRadiusSquared.
+     */
+    public static int innerExtent(int offsetSquared, double innerRadiusSquared) {
+        if (offsetSquared >= innerRadiusSquared) return 0;
+        int d = (int) Math.ceil(Math.sqrt(innerRadiusSquared - offsetSquared));
+        while (d > 0 && offsetSquared + (double) (d - 1) * (d - 1) >= innerRadiusSquared) d--;
+        while (offsetSquared + (double) d * d < innerRadiusSquared) d++;
+        return d;
+    }
+
+    /**
+     * @return The number of voxels in a span mirrored around zero whose absolute offsets
+     *         lie between bottom and top (inclusive).
+     */
+    public static long mirroredLength(int bottom, int top) {
+        if (bottom > top) return 0;
+        long length = top - bottom + 1L;
+        return bottom == 0 ? 2 * length - 1 : 2 * length;
+    }
+}
@@ -0,0 +1,15 @@
+/**
+ * Receives the voxels of a shape one by one, as block offsets relative to the shape's origin.
+ * Shapes stream their voxels into a visitor instead of handing out collections, so iterating
+ * a shape never allocates.
+ *
+ * @author Silas Hörz
+ * @version 1.0
+ */
+package de.roundthing;
+
+@FunctionalInterface
+public interface VoxelVisitor {
+
+    void visit(int x, int y, int z);
+}